@@ -0,0 +1,466 @@
+import com.sun.management.ThreadMXBean;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+//Microbenchmarks of the broker's hot paths, driving the broker's own static entry points in-process.
+//Compile together with the broker and run:
+//javac -d out src/*.java bench/*.java && java -cp out BrokerBench [-warmup N] [-iterations N] [-time-ms ms] [-only a,b]
+//Every benchmark runs its warmup iterations first, then reports throughput over the measured ones along with
+//the bytes the benchmark thread allocated per operation and the collections that ran while measuring.
+public class BrokerBench {
+
+    //Operations return a value folded into `sink` so the JIT cannot discard their work
+    private interface Operation {
+        long run(int i);
+    }
+
+    private static final class Benchmark {
+        final String name;
+        final Runnable setUp;
+        final Operation operation;
+        final Runnable tearDown;
+
+        Benchmark(String name, Runnable setUp, Operation operation, Runnable tearDown) {
+            this.name = name;
+            this.setUp = setUp;
+            this.operation = operation;
+            this.tearDown = tearDown;
+        }
+    }
+
+    //Connection that accepts everything and writes nothing
+    private static class NullConnection implements Connection {
+        @Override
+        public void send(ByteBuffer reply) {
+        }
+
+        @Override
+        public boolean deliver(String subscriberId, Message message) {
+            return true;
+        }
+
+        @Override
+        public void multiplex() {
+        }
+
+        @Override
+        public void includeOffsets() {
+        }
+
+        @Override
+        public boolean awaitCapacity() {
+            return true;
+        }
+
+        @Override
+        public long droppedMessages() {
+            return 0;
+        }
+
+        @Override
+        public long deliveredMessages() {
+            return 0;
+        }
+
+        @Override
+        public int backlog() {
+            return 0;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    //Encodes every delivery in its wire format and takes the per-connection view a writer would
+    private static final class EncodingConnection extends NullConnection {
+        private final boolean binary;
+        long encodedBytes = 0;
+
+        EncodingConnection(boolean binary) {
+            this.binary = binary;
+        }
+
+        @Override
+        public boolean deliver(String subscriberId, Message message) {
+            var frame = binary ? message.binaryFrame(0) : message.textFrame();
+            encodedBytes += frame.duplicate().remaining();
+            return true;
+        }
+    }
+
+    private static final int CHURN_THREADS = 2;
+    private static final int LARGE_TABLE_TOPICS = 100_000;
+    private static final int LARGE_TABLE_SUBSCRIBERS_PER_TOPIC = 4;
+    private static final int WIDE_TOPIC_SUBSCRIBERS = 1000;
+    private static final byte[] PAYLOAD = "0123456789abcdef0123456789abcdef0123456789abcdef0123456789abcdef"
+            .getBytes(StandardCharsets.UTF_8);
+
+    private static final Connection NULL_CONNECTION = new NullConnection();
+    private static final int HANDOFF_RING_BYTES = 1 << 20;
+    private static SharedMemoryTransport.Ring producerRing;
+    private static SharedMemoryTransport.Ring consumerRing;
+    private static final List<Socket> loopbackSockets = new ArrayList<>();
+    private static OutputStream loopbackOut;
+    private static InputStream loopbackIn;
+    private static final AtomicBoolean churning = new AtomicBoolean();
+    private static final List<Thread> churnThreads = new ArrayList<>();
+    private static long sink = 0;
+
+    private static int warmupIterations = 3;
+    private static int measuredIterations = 5;
+    private static long iterationMillis = 1000;
+    private static Set<String> only = null;
+
+    public static void main(String[] args) throws InterruptedException {
+
+        validateArgs(args);
+
+        BrokerLog.setLevel(BrokerLog.Level.OFF);
+        System.out.println(String.format("%-24s %14s %12s %10s %10s %6s",
+                "Benchmark", "ops/s", "error", "ns/op", "B/op", "gcs"));
+        for (var benchmark : benchmarks()){
+            if (only == null || only.contains(benchmark.name)){
+                run(benchmark);
+            }
+        }
+        System.out.println(String.format("(sink %d)", sink));
+    }
+
+    private static List<Benchmark> benchmarks(){
+        var benchmarks = new ArrayList<Benchmark>();
+
+        // the line handling readPubCommandAndReply and readSubCommandAndReply do per command
+        var pubLines = new byte[1024][];
+        for (int i = 0; i < pubLines.length; i++){
+            pubLines[i] = String.format("bench-pub pub@%d #parse/%d %s\n", i, i % 64, new String(PAYLOAD, StandardCharsets.UTF_8))
+                    .getBytes(StandardCharsets.UTF_8);
+        }
+        var pubCommands = new PublisherCommands(NULL_CONNECTION);
+        benchmarks.add(new Benchmark("pub-command", () -> {},
+                i -> {
+                    var line = pubLines[i & (pubLines.length - 1)];
+                    return pubCommands.lines(line, 0, line.length);
+                },
+                () -> Broker.disconnectPublisherWithId("bench-pub")));
+
+        var subLines = new String[1024];
+        for (int i = 0; i < subLines.length; i++){
+            subLines[i] = String.format("bench-sub %s@%d #parse/%d", i % 2 == 0 ? "sub" : "unsub", i, (i / 2) % 64);
+        }
+        benchmarks.add(new Benchmark("sub-command", () -> {},
+                i -> {
+                    var line = subLines[i & (subLines.length - 1)];
+                    Broker.handleSubCommand(line, NULL_CONNECTION);
+                    return line.length();
+                },
+                () -> Broker.disconnectSubscriberWithId("bench-sub")));
+
+        // a hot topic with exact and wildcard subscribers, while other threads keep changing
+        // exact subscriptions elsewhere and the wildcard subscriptions that match the hot topic
+        benchmarks.add(new Benchmark("resolve-under-churn",
+                () -> {
+                    for (int i = 0; i < 100; i++){
+                        subscribe("hot-" + i, NULL_CONNECTION, "#hot/x");
+                    }
+                    for (int i = 0; i < 10; i++){
+                        subscribe("hot-pattern-" + i, NULL_CONNECTION, "#hot/+");
+                    }
+                    startChurn();
+                },
+                i -> {
+                    Broker.sendMessageForTopic("bench-pub", new Message("#hot/x", PAYLOAD));
+                    return i;
+                },
+                () -> {
+                    stopChurn();
+                    for (int i = 0; i < 100; i++){
+                        Broker.disconnectSubscriberWithId("hot-" + i);
+                    }
+                    for (int i = 0; i < 10; i++){
+                        Broker.disconnectSubscriberWithId("hot-pattern-" + i);
+                    }
+                    Broker.disconnectPublisherWithId("bench-pub");
+                }));
+
+        // one subscriber of 100 topics leaving a table of LARGE_TABLE_TOPICS topics, each with a few subscribers
+        benchmarks.add(new Benchmark("disconnect-large-table",
+                () -> {
+                    for (int s = 0; s < LARGE_TABLE_SUBSCRIBERS_PER_TOPIC; s++){
+                        Broker.registerSubscriber("table-" + s, NULL_CONNECTION);
+                        for (int t = 0; t < LARGE_TABLE_TOPICS; t++){
+                            Broker.subscribeToTopic("table-" + s, "#table/" + t);
+                        }
+                    }
+                },
+                i -> {
+                    var id = "leaving-" + (i & 1023);
+                    Broker.registerSubscriber(id, NULL_CONNECTION);
+                    var random = ThreadLocalRandom.current();
+                    for (int t = 0; t < 100; t++){
+                        Broker.subscribeToTopic(id, "#table/" + random.nextInt(LARGE_TABLE_TOPICS));
+                    }
+                    Broker.disconnectSubscriberWithId(id);
+                    return i;
+                },
+                () -> {
+                    for (int s = 0; s < LARGE_TABLE_SUBSCRIBERS_PER_TOPIC; s++){
+                        Broker.disconnectSubscriberWithId("table-" + s);
+                    }
+                }));
+
+        // every message is encoded once per wire format and viewed once per subscriber
+        var wideSubscribers = new ArrayList<EncodingConnection>();
+        benchmarks.add(new Benchmark("fanout-encode",
+                () -> {
+                    for (int i = 0; i < WIDE_TOPIC_SUBSCRIBERS; i++){
+                        var connection = new EncodingConnection(i % 2 == 1);
+                        wideSubscribers.add(connection);
+                        subscribe("wide-" + i, connection, "#wide");
+                    }
+                },
+                i -> {
+                    Broker.sendMessageForTopic("bench-pub", new Message("#wide", PAYLOAD));
+                    return i;
+                },
+                () -> {
+                    for (int i = 0; i < WIDE_TOPIC_SUBSCRIBERS; i++){
+                        sink += wideSubscribers.get(i).encodedBytes;
+                        Broker.disconnectSubscriberWithId("wide-" + i);
+                    }
+                    Broker.disconnectPublisherWithId("bench-pub");
+                }));
+
+        // a MSG frame written by one side of a transport and read back by the other, on one thread
+        var frame = BinaryProtocol.encode(BinaryProtocol.MSG, 0, 1, PAYLOAD);
+        var frameView = frame.duplicate();
+        var received = ByteBuffer.allocate(frame.remaining());
+        benchmarks.add(new Benchmark("shm-handoff", BrokerBench::openRing,
+                i -> {
+                    producerRing.write(frameView.rewind());
+                    received.clear();
+                    return consumerRing.read(received);
+                },
+                () -> producerRing = consumerRing = null));
+
+        var frameBytes = new byte[frame.remaining()];
+        frame.duplicate().get(frameBytes);
+        benchmarks.add(new Benchmark("loopback-handoff", BrokerBench::openLoopback,
+                i -> {
+                    try {
+                        loopbackOut.write(frameBytes);
+                        var read = 0;
+                        while (read < frameBytes.length){
+                            read += loopbackIn.read(received.array(), read, frameBytes.length - read);
+                        }
+                        return read;
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                },
+                BrokerBench::closeLoopback));
+
+        return benchmarks;
+    }
+
+    //Both ends of the to-broker ring of a client file, as SharedMemoryTransport and the clients map it
+    private static void openRing(){
+        try {
+            var file = Files.createTempFile("bench-", ".ring");
+            file.toFile().deleteOnExit();
+            try (var channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)){
+                var mapped = channel.map(FileChannel.MapMode.READ_WRITE, 0,
+                        SharedMemoryTransport.DATA_OFFSET + 2L * HANDOFF_RING_BYTES);
+                mapped.order(ByteOrder.nativeOrder());
+                producerRing = new SharedMemoryTransport.Ring(mapped, SharedMemoryTransport.DATA_OFFSET, HANDOFF_RING_BYTES,
+                        SharedMemoryTransport.TO_BROKER_WRITE, SharedMemoryTransport.TO_BROKER_READ, true);
+                consumerRing = new SharedMemoryTransport.Ring(mapped, SharedMemoryTransport.DATA_OFFSET, HANDOFF_RING_BYTES,
+                        SharedMemoryTransport.TO_BROKER_WRITE, SharedMemoryTransport.TO_BROKER_READ, false);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static void openLoopback(){
+        try (var server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())){
+            var client = new Socket(InetAddress.getLoopbackAddress(), server.getLocalPort());
+            var accepted = server.accept();
+            client.setTcpNoDelay(true);
+            loopbackSockets.add(client);
+            loopbackSockets.add(accepted);
+            loopbackOut = client.getOutputStream();
+            loopbackIn = accepted.getInputStream();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static void closeLoopback(){
+        for (var socket : loopbackSockets){
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // nothing left to release
+            }
+        }
+        loopbackSockets.clear();
+    }
+
+    private static void subscribe(String subId, Connection connection, String topic){
+        Broker.registerSubscriber(subId, connection);
+        Broker.subscribeToTopic(subId, topic);
+    }
+
+    private static void startChurn(){
+        churning.set(true);
+        for (int t = 0; t < CHURN_THREADS; t++){
+            var churner = "churn-" + t;
+            var thread = new Thread(() -> {
+                Broker.registerSubscriber(churner, NULL_CONNECTION);
+                var random = ThreadLocalRandom.current();
+                while (churning.get()){
+                    var topic = random.nextInt(8) == 0 ? "#hot/+" : "#churn/" + random.nextInt(1024);
+                    Broker.subscribeToTopic(churner, topic);
+                    Broker.unsubscribeFromTopic(churner, topic);
+                }
+                Broker.disconnectSubscriberWithId(churner);
+            }, churner);
+            churnThreads.add(thread);
+            thread.start();
+        }
+    }
+
+    private static void stopChurn(){
+        churning.set(false);
+        for (var thread : churnThreads){
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        churnThreads.clear();
+    }
+
+    private static void run(Benchmark benchmark){
+        benchmark.setUp.run();
+        for (int i = 0; i < warmupIterations; i++){
+            iteration(benchmark.operation);
+        }
+        var threads = (ThreadMXBean) ManagementFactory.getThreadMXBean();
+        var threadId = Thread.currentThread().getId();
+        var gcsBefore = collections();
+        var allocatedBefore = threads.getThreadAllocatedBytes(threadId);
+        var rates = new double[measuredIterations];
+        var operations = 0L;
+        var nanos = 0L;
+        for (int i = 0; i < measuredIterations; i++){
+            var start = System.nanoTime();
+            var count = iteration(benchmark.operation);
+            var elapsed = System.nanoTime() - start;
+            rates[i] = count * 1e9 / elapsed;
+            operations += count;
+            nanos += elapsed;
+        }
+        var allocated = threads.getThreadAllocatedBytes(threadId) - allocatedBefore;
+        var gcs = collections() - gcsBefore;
+        benchmark.tearDown.run();
+
+        var mean = 0.0;
+        for (var rate : rates){
+            mean += rate / rates.length;
+        }
+        var variance = 0.0;
+        for (var rate : rates){
+            variance += (rate - mean) * (rate - mean) / Math.max(rates.length - 1, 1);
+        }
+        System.out.println(String.format("%-24s %14.0f %12.0f %10.1f %10.1f %6d", benchmark.name, mean,
+                Math.sqrt(variance), (double) nanos / operations, (double) allocated / operations, gcs));
+    }
+
+    //Runs the operation for one iteration's time, checking the clock every 256 calls
+    private static long iteration(Operation operation){
+        var deadline = System.nanoTime() + iterationMillis * 1_000_000;
+        var count = 0;
+        var result = 0L;
+        do {
+            for (int i = 0; i < 256; i++){
+                result ^= operation.run(count++);
+            }
+        } while (System.nanoTime() - deadline < 0);
+        sink ^= result;
+        return count;
+    }
+
+    private static long collections(){
+        var count = 0L;
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()){
+            count += Math.max(collector.getCollectionCount(), 0);
+        }
+        return count;
+    }
+
+    private static void validateArgs(String[] args){
+        var invalidArgsMsg = "Invalid arguments";
+        var validArgFormat = "BrokerBench runs as follows: <BrokerBench [-warmup iterations] [-iterations iterations] "
+                + "[-time-ms iteration_ms] [-only benchmark,...]>";
+
+        if (args.length % 2 != 0){
+            System.err.println(invalidArgsMsg);
+            System.err.println(validArgFormat);
+            System.exit(-1);
+        }
+
+        try {
+            for (int i = 0; i < args.length; i += 2){
+                if ("-warmup".equals(args[i])){
+                    warmupIterations = Integer.parseInt(args[i + 1]);
+                }
+                else if ("-iterations".equals(args[i])){
+                    measuredIterations = Integer.parseInt(args[i + 1]);
+                }
+                else if ("-time-ms".equals(args[i])){
+                    iterationMillis = Long.parseLong(args[i + 1]);
+                }
+                else if ("-only".equals(args[i])){
+                    only = Set.of(args[i + 1].split(","));
+                }
+                else {
+                    System.err.println(invalidArgsMsg);
+                    System.err.println(String.format("Unknown argument: '%s'", args[i]));
+                    System.err.println(validArgFormat);
+                    System.exit(-1);
+                }
+            }
+        }
+        catch (NumberFormatException e){
+            System.err.println(invalidArgsMsg);
+            System.err.println(validArgFormat);
+            System.exit(-1);
+        }
+        if (warmupIterations < 0 || measuredIterations < 1 || iterationMillis < 1){
+            System.err.println(invalidArgsMsg);
+            System.err.println(validArgFormat);
+            System.exit(-1);
+        }
+    }
+}
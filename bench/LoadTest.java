@@ -0,0 +1,408 @@
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.ConnectException;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+//loadtest -s s_port -p p_port [-h broker_IP] [-broker "broker_args"] [-publishers M] [-subscribers N] [-topics T]
+//         [-fanout uniform|zipf] [-zipf-exponent s] [-topics-per-sub K] [-size bytes] [-rate msgs_per_s]
+//         [-duration-s seconds] [-warmup-s seconds]
+//Drives a broker over loopback with M publisher and N subscriber connections from this process, all on the text
+//protocol. With -broker the broker is started as a subprocess with the given extra arguments, otherwise one must
+//already listen on the ports. Each subscriber subscribes to K topics picked uniformly or by a Zipf law, which sets
+//the fan-out of every topic, and publishers pick topics uniformly at a fixed total rate.
+//Every message carries the time it was meant to be sent and the time it was sent. Latency from the actual send
+//is what a naive client reports; latency from the intended send also counts the time a stalled broker kept the
+//publishers from sending, which corrects for coordinated omission.
+public class LoadTest {
+
+    private static final String TOPIC_PREFIX = "#load/";
+
+    private static String brokerIp = "127.0.0.1";
+    private static int subPort;
+    private static int pubPort;
+    private static String brokerArgs = null;
+    private static int publishers = 1;
+    private static int subscribers = 1;
+    private static int topics = 1;
+    private static boolean zipf = false;
+    private static double zipfExponent = 1.0;
+    private static int topicsPerSubscriber = 1;
+    private static int messageSize = 100;
+    private static long rate = 10_000;
+    private static long durationSeconds = 10;
+    private static long warmupSeconds = 2;
+
+    private static final LatencyHistogram uncorrected = new LatencyHistogram();
+    private static final LatencyHistogram corrected = new LatencyHistogram();
+    private static final LongAdder sent = new LongAdder();
+    private static final LongAdder received = new LongAdder();
+    private static final AtomicLong expected = new AtomicLong();
+    private static int[] fanout;
+    private static long measureStart;
+    private static long measureEnd;
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+
+        validateArgs(args);
+
+        Process broker = null;
+        if (brokerArgs != null){
+            broker = startBroker();
+        }
+        try {
+            run();
+        } finally {
+            if (broker != null){
+                broker.destroy();
+                broker.waitFor(5, TimeUnit.SECONDS);
+            }
+        }
+    }
+
+    private static Process startBroker() throws IOException {
+        var command = new ArrayList<>(List.of(Path.of(System.getProperty("java.home"), "bin", "java").toString(),
+                "-cp", System.getProperty("java.class.path"), "Broker",
+                "-s", Integer.toString(subPort), "-p", Integer.toString(pubPort)));
+        if (!brokerArgs.isBlank()){
+            command.addAll(Arrays.asList(brokerArgs.trim().split("\\s+")));
+        }
+        // the broker's per-command log would otherwise fill the pipe and stall it
+        return new ProcessBuilder(command)
+                .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+                .redirectError(ProcessBuilder.Redirect.INHERIT)
+                .start();
+    }
+
+    private static void run() throws IOException, InterruptedException {
+        var subscriptions = chooseSubscriptions();
+        fanout = new int[topics];
+        for (var subscribed : subscriptions){
+            for (var topic : subscribed){
+                fanout[topic]++;
+            }
+        }
+
+        var sockets = new ArrayList<Socket>();
+        var threads = new ArrayList<Thread>();
+        for (int i = 0; i < subscribers; i++){
+            var socket = connect(subPort);
+            sockets.add(socket);
+            threads.add(startSubscriber(String.format("load-sub-%d", i), socket, subscriptions.get(i)));
+        }
+        // give the subscriptions time to be acknowledged before anything is published
+        Thread.sleep(500);
+
+        var start = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(100);
+        measureStart = start + TimeUnit.SECONDS.toNanos(warmupSeconds);
+        measureEnd = measureStart + TimeUnit.SECONDS.toNanos(durationSeconds);
+        var publisherThreads = new ArrayList<Thread>();
+        for (int i = 0; i < publishers; i++){
+            var socket = connect(pubPort);
+            sockets.add(socket);
+            publisherThreads.add(startPublisher(String.format("load-pub-%d", i), socket, start, i));
+        }
+        System.out.println(String.format("Publishing %d msgs/s of %d bytes to %d topics for %ds (+%ds warmup), "
+                + "%d publishers, %d subscribers", rate, messageSize, topics, durationSeconds, warmupSeconds,
+                publishers, subscribers));
+        for (var thread : publisherThreads){
+            thread.join();
+        }
+        // let the deliveries still in flight arrive, until all did or none arrived for a second
+        var idleSince = System.nanoTime();
+        var lastReceived = received.sum();
+        while (lastReceived < expected.get() && System.nanoTime() - idleSince < TimeUnit.SECONDS.toNanos(1)){
+            Thread.sleep(100);
+            if (received.sum() != lastReceived){
+                lastReceived = received.sum();
+                idleSince = System.nanoTime();
+            }
+        }
+        report();
+        for (var socket : sockets){
+            socket.close();
+        }
+        for (var thread : threads){
+            thread.join(1000);
+        }
+    }
+
+    private static Socket connect(int port) throws IOException, InterruptedException {
+        var deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (true){
+            try {
+                var socket = new Socket(brokerIp, port);
+                socket.setTcpNoDelay(true);
+                return socket;
+            } catch (ConnectException e) {
+                // the broker subprocess may still be starting
+                if (System.nanoTime() - deadline > 0){
+                    throw e;
+                }
+                Thread.sleep(100);
+            }
+        }
+    }
+
+    //K distinct topics per subscriber, picked from the uniform or Zipf distribution over topics
+    private static List<int[]> chooseSubscriptions(){
+        var random = new Random(42);
+        var cumulative = new double[topics];
+        var total = 0.0;
+        for (int i = 0; i < topics; i++){
+            total += zipf ? 1 / Math.pow(i + 1, zipfExponent) : 1;
+            cumulative[i] = total;
+        }
+        var subscriptions = new ArrayList<int[]>(subscribers);
+        var perSubscriber = Math.min(topicsPerSubscriber, topics);
+        for (int s = 0; s < subscribers; s++){
+            var chosen = new LinkedHashSet<Integer>();
+            while (chosen.size() < perSubscriber){
+                var index = Arrays.binarySearch(cumulative, random.nextDouble() * total);
+                chosen.add(Math.min(index < 0 ? -index - 1 : index, topics - 1));
+            }
+            subscriptions.add(chosen.stream().mapToInt(Integer::intValue).toArray());
+        }
+        return subscriptions;
+    }
+
+    private static Thread startSubscriber(String id, Socket socket, int[] subscribed) throws IOException {
+        var command = new StringBuilder(id).append(" msub@0");
+        for (var topic : subscribed){
+            command.append(' ').append(TOPIC_PREFIX).append(topic);
+        }
+        var outStream = socket.getOutputStream();
+        outStream.write(command.append('\n').toString().getBytes(StandardCharsets.UTF_8));
+        outStream.flush();
+        var thread = new Thread(() -> {
+            try {
+                var inStream = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+                var line = inStream.readLine();
+                while (line != null){
+                    var now = System.nanoTime();
+                    // "TOPIC INTENDED SENT PADDING", replies start with OK
+                    var topicEnd = line.indexOf(' ');
+                    var intendedEnd = line.indexOf(' ', topicEnd + 1);
+                    var sentEnd = line.indexOf(' ', intendedEnd + 1);
+                    if (!line.startsWith("OK") && topicEnd > 0 && intendedEnd > 0 && sentEnd > 0){
+                        var intended = Long.parseLong(line, topicEnd + 1, intendedEnd, 10);
+                        var sentAt = Long.parseLong(line, intendedEnd + 1, sentEnd, 10);
+                        if (intended - measureStart >= 0 && intended - measureEnd < 0){
+                            corrected.record(now - intended);
+                            uncorrected.record(now - sentAt);
+                            received.increment();
+                        }
+                    }
+                    line = inStream.readLine();
+                }
+            } catch (IOException e) {
+                // closed at the end of the run
+            }
+        }, id);
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+
+    //Sends on a fixed schedule: the i-th message is due at start + i * interval, however late the previous one
+    //went out. A publisher that falls behind sends its overdue messages back to back with one flush.
+    private static Thread startPublisher(String id, Socket socket, long start, int index) throws IOException {
+        var outStream = new BufferedOutputStream(socket.getOutputStream(), 64 * 1024);
+        drainReplies(id, socket);
+        var interval = (double) TimeUnit.SECONDS.toNanos(1) * publishers / rate;
+        var offset = (long) (interval * index / publishers);
+        var thread = new Thread(() -> {
+            var random = new Random(index);
+            var prefix = (id + " pub ").getBytes(StandardCharsets.UTF_8);
+            var line = new byte[prefix.length + TOPIC_PREFIX.length() + 64 + messageSize + 1];
+            try {
+                for (long i = 0; ; i++){
+                    var intended = start + offset + (long) (i * interval);
+                    if (intended - measureEnd >= 0){
+                        break;
+                    }
+                    var now = System.nanoTime();
+                    if (intended - now > 0){
+                        outStream.flush();
+                        while ((now = System.nanoTime()) - intended < 0){
+                            LockSupport.parkNanos(intended - now);
+                        }
+                    }
+                    var topic = random.nextInt(topics);
+                    outStream.write(line, 0, encode(line, prefix, topic, intended, now));
+                    if (intended - measureStart >= 0){
+                        sent.increment();
+                        expected.addAndGet(fanout[topic]);
+                    }
+                }
+                outStream.write((id + " exit\n").getBytes(StandardCharsets.UTF_8));
+                outStream.flush();
+            } catch (IOException e) {
+                System.err.println(String.format("Publisher %s failed: %s", id, e.getMessage()));
+            }
+        }, id);
+        thread.start();
+        return thread;
+    }
+
+    //"PUB_ID pub TOPIC INTENDED SENT PADDING\n", padded so the message is `messageSize` bytes when it can be
+    private static int encode(byte[] line, byte[] prefix, int topic, long intended, long sentAt){
+        System.arraycopy(prefix, 0, line, 0, prefix.length);
+        var header = (TOPIC_PREFIX + topic + ' ' + intended + ' ' + sentAt + ' ').getBytes(StandardCharsets.UTF_8);
+        System.arraycopy(header, 0, line, prefix.length, header.length);
+        var messageStart = prefix.length + TOPIC_PREFIX.length() + Integer.toString(topic).length() + 1;
+        var length = prefix.length + header.length;
+        var end = Math.max(length + 1, messageStart + messageSize);
+        Arrays.fill(line, length, end, (byte) 'x');
+        line[end] = '\n';
+        return end + 1;
+    }
+
+    //Publishers only need their OKs read so the broker never blocks writing them
+    private static void drainReplies(String id, Socket socket){
+        var thread = new Thread(() -> {
+            var buffer = new byte[16 * 1024];
+            try {
+                var inStream = socket.getInputStream();
+                while (inStream.read(buffer) >= 0){
+                    // discard
+                }
+            } catch (IOException e) {
+                // closed at the end of the run
+            }
+        }, id + "-replies");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private static void report(){
+        var seconds = (double) durationSeconds;
+        System.out.println(String.format("Sent %d messages (%.0f msgs/s), received %d of %d expected deliveries "
+                        + "(%.0f msgs/s)", sent.sum(), sent.sum() / seconds, received.sum(), expected.get(),
+                received.sum() / seconds));
+        System.out.println(String.format("%-28s %10s %10s %10s %10s %10s", "Latency (us)", "p50", "p99", "p99.9",
+                "max", "mean"));
+        printLatency("from send (uncorrected)", uncorrected.snapshot());
+        printLatency("from intended send (CO)", corrected.snapshot());
+    }
+
+    private static void printLatency(String name, LatencyHistogram.Snapshot snapshot){
+        System.out.println(String.format("%-28s %10.1f %10.1f %10.1f %10.1f %10.1f", name,
+                snapshot.percentile(0.5) / 1e3, snapshot.percentile(0.99) / 1e3, snapshot.percentile(0.999) / 1e3,
+                snapshot.max / 1e3, snapshot.mean() / 1e3));
+    }
+
+    private static void validateArgs(String[] args){
+        var invalidArgsMsg = "Invalid arguments";
+        var validArgFormat = "LoadTest runs as follows: <loadtest -s s_port -p p_port [-h broker_IP] "
+                + "[-broker \"broker_args\"] [-publishers M] [-subscribers N] [-topics T] [-fanout uniform|zipf] "
+                + "[-zipf-exponent s] [-topics-per-sub K] [-size bytes] [-rate msgs_per_s] [-duration-s seconds] "
+                + "[-warmup-s seconds]>";
+        var invalidValue = "Value '%s' is not valid for %s";
+
+        if (args.length < 4 || args.length % 2 != 0){
+            System.err.println(invalidArgsMsg);
+            System.err.println(validArgFormat);
+            System.exit(-1);
+        }
+
+        String subPort = null;
+        String pubPort = null;
+        for (int i = 0; i < args.length; i += 2){
+            var value = args[i + 1];
+            try {
+                switch (args[i]){
+                    case "-s":
+                        subPort = value;
+                        LoadTest.subPort = Integer.parseInt(value);
+                        break;
+                    case "-p":
+                        pubPort = value;
+                        LoadTest.pubPort = Integer.parseInt(value);
+                        break;
+                    case "-h":
+                        brokerIp = value;
+                        break;
+                    case "-broker":
+                        brokerArgs = value;
+                        break;
+                    case "-publishers":
+                        publishers = positive(Integer.parseInt(value));
+                        break;
+                    case "-subscribers":
+                        subscribers = positive(Integer.parseInt(value));
+                        break;
+                    case "-topics":
+                        topics = positive(Integer.parseInt(value));
+                        break;
+                    case "-fanout":
+                        if (!"uniform".equals(value) && !"zipf".equals(value)){
+                            throw new NumberFormatException();
+                        }
+                        zipf = "zipf".equals(value);
+                        break;
+                    case "-zipf-exponent":
+                        zipfExponent = Double.parseDouble(value);
+                        break;
+                    case "-topics-per-sub":
+                        topicsPerSubscriber = positive(Integer.parseInt(value));
+                        break;
+                    case "-size":
+                        messageSize = positive(Integer.parseInt(value));
+                        break;
+                    case "-rate":
+                        rate = positive(Long.parseLong(value));
+                        break;
+                    case "-duration-s":
+                        durationSeconds = positive(Long.parseLong(value));
+                        break;
+                    case "-warmup-s":
+                        warmupSeconds = Long.parseLong(value);
+                        break;
+                    default:
+                        System.err.println(invalidArgsMsg);
+                        System.err.println(String.format("Unknown argument: '%s'", args[i]));
+                        System.err.println(validArgFormat);
+                        System.exit(-1);
+                }
+            }
+            catch (NumberFormatException e){
+                System.err.println(invalidArgsMsg);
+                System.err.println(String.format(invalidValue, value, args[i]));
+                System.exit(-1);
+            }
+        }
+
+        if (subPort == null || pubPort == null){
+            System.err.println(invalidArgsMsg);
+            System.err.println(validArgFormat);
+            System.exit(-1);
+        }
+    }
+
+    private static int positive(int value){
+        if (value <= 0){
+            throw new NumberFormatException();
+        }
+        return value;
+    }
+
+    private static long positive(long value){
+        if (value <= 0){
+            throw new NumberFormatException();
+        }
+        return value;
+    }
+}
@@ -0,0 +1,49 @@
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.function.Supplier;
+
+//Local HTTP endpoint for scraping the broker's metrics, bound to the loopback interface only.
+//GET /metrics answers in the Prometheus text format and GET /metrics.json with the same snapshot as JSON.
+final class AdminServer {
+
+    private final HttpServer server;
+
+    private AdminServer(HttpServer server) {
+        this.server = server;
+    }
+
+    static AdminServer start(int port, Supplier<String> text, Supplier<String> json) throws IOException {
+        var server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        server.createContext("/metrics", exchange -> respond(exchange, "text/plain; version=0.0.4", text));
+        server.createContext("/metrics.json", exchange -> respond(exchange, "application/json", json));
+        server.start();
+        return new AdminServer(server);
+    }
+
+    private static void respond(HttpExchange exchange, String contentType, Supplier<String> body) throws IOException {
+        try {
+            if (!"GET".equals(exchange.getRequestMethod())){
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+            var bytes = body.get().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", contentType + "; charset=utf-8");
+            exchange.sendResponseHeaders(200, bytes.length);
+            exchange.getResponseBody().write(bytes);
+        } finally {
+            exchange.close();
+        }
+    }
+
+    int port(){
+        return server.getAddress().getPort();
+    }
+
+    void stop(){
+        server.stop(0);
+    }
+}
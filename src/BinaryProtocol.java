@@ -0,0 +1,364 @@
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+//Length-prefixed binary framing, negotiated by a client sending MAGIC as its first bytes.
+//Every frame is a 13 byte header (opcode, client id, topic id, payload length) followed by the raw payload.
+//Client and topic ids are aliases the client defines once per connection with REGISTER and TOPIC frames.
+//In the other direction the broker announces its own topic ids with TOPIC frames before the first MSG using them.
+//A MSG carries the alias of the subscriber it is for, so one connection can carry many registered subscribers.
+//APUB carries a sequence number so a publisher can pipeline publishes and match the OKs.
+//SUB and UNSUB may carry one as their payload for the same reason, SUB followed by the offset to replay from.
+final class BinaryProtocol {
+
+    static final byte[] MAGIC = {0, 'P', 'S', 'B'};
+    static final int HEADER_SIZE = 13;
+    static final int MAX_PAYLOAD_SIZE = 16 * 1024 * 1024;
+
+    static final byte REGISTER = 1;
+    static final byte TOPIC = 2;
+    static final byte PUB = 3;
+    static final byte SUB = 4;
+    static final byte UNSUB = 5;
+    static final byte EXIT = 6;
+    static final byte OK = 7;
+    static final byte MSG = 8;
+    //PUB whose payload starts with an 8 byte sequence number, echoed as the payload of its OK
+    static final byte APUB = 9;
+    //Sequence number, entry count and entries of (topic id, length, payload), acknowledged by one OK
+    static final byte BATCH = 10;
+    //Sequence number, topic count and topic ids, acknowledged by one OK carrying the sequence number
+    static final byte MSUB = 11;
+    static final byte MUNSUB = 12;
+    //PUB and APUB whose message also becomes the topic's retained message
+    static final byte RETAIN = 13;
+    static final byte ARETAIN = 14;
+    //Sent instead of the OK of a rejected command, with the same payload
+    static final byte ERROR = 15;
+    //MSG of a message stored in its topic's log, the payload starts with the message's 8 byte offset
+    static final byte OMSG = 16;
+
+    private static final byte[] NO_PAYLOAD = new byte[0];
+    private static final int MAX_ANNOUNCED_TOPICS = 64 * 1024;
+    //Broker-wide topic ids, identical for every connection so MSG frames can be shared.
+    //Each session holds a reference to the ids it announced, an id is reused once no session knows it.
+    private static final Interner topicIds = new Interner();
+
+    private BinaryProtocol() {
+    }
+
+    static ByteBuffer encode(byte opcode, int clientId, int topicId, byte[] payload){
+        var frame = ByteBuffer.allocate(HEADER_SIZE + payload.length);
+        frame.put(opcode).putInt(clientId).putInt(topicId).putInt(payload.length).put(payload).flip();
+        return frame.asReadOnlyBuffer();
+    }
+
+    static boolean startsWithMagic(byte[] bytes, int length){
+        return length >= MAGIC.length && Arrays.equals(bytes, 0, MAGIC.length, MAGIC, 0, MAGIC.length);
+    }
+
+    //Blocking read loop, returns when the client closes the connection
+    static void readFrames(DataInputStream inStream, Session session) throws IOException {
+        while (true){
+            byte opcode;
+            try {
+                opcode = inStream.readByte();
+            } catch (EOFException e) {
+                return;
+            }
+            var clientId = inStream.readInt();
+            var topicId = inStream.readInt();
+            var payload = new byte[checkedLength(inStream.readInt())];
+            inStream.readFully(payload);
+            session.handle(opcode, clientId, topicId, payload);
+        }
+    }
+
+    //Handles every complete frame in the buffer and leaves it positioned at the first incomplete one.
+    //Returns the capacity needed to hold the incomplete frame.
+    static int decodeFrames(ByteBuffer buffer, Session session) throws IOException {
+        while (buffer.remaining() >= HEADER_SIZE){
+            var start = buffer.position();
+            var length = checkedLength(buffer.getInt(start + 9));
+            if (buffer.remaining() < HEADER_SIZE + length){
+                return HEADER_SIZE + length;
+            }
+            var opcode = buffer.get();
+            var clientId = buffer.getInt();
+            var topicId = buffer.getInt();
+            buffer.getInt();
+            var payload = new byte[length];
+            buffer.get(payload);
+            session.handle(opcode, clientId, topicId, payload);
+        }
+        return HEADER_SIZE;
+    }
+
+    private static int checkedLength(int length) throws ProtocolException {
+        if (length < 0 || length > MAX_PAYLOAD_SIZE){
+            throw new ProtocolException(String.format("Invalid payload length: %d", length));
+        }
+        return length;
+    }
+
+    //A count that the rest of the payload cannot hold is rejected before anything is sized by it
+    private static int checkedCount(int count, int remaining, int minimumEntrySize) throws ProtocolException {
+        if (count < 0 || count > remaining / minimumEntrySize){
+            throw new ProtocolException(String.format("Invalid entry count: %d", count));
+        }
+        return count;
+    }
+
+    //Per-connection state: the aliases defined by the client and the topic ids already announced to it
+    static final class Session {
+
+        private final Connection connection;
+        private final boolean publisherPort;
+        private final Map<Integer, String> clientIds = new HashMap<>();
+        // read by the delivering threads
+        private final Map<String, Integer> clientAliases = new ConcurrentHashMap<>();
+        private final Map<Integer, String> topics = new HashMap<>();
+        // guarded by the session's monitor, like the announcements themselves
+        private final Map<String, Integer> announcedTopics = new HashMap<>();
+        private boolean closed = false;
+
+        Session(Connection connection, boolean publisherPort) {
+            this.connection = connection;
+            this.publisherPort = publisherPort;
+        }
+
+        //Returns the TOPIC frame to queue ahead of the message, or null if the client already knows the topic.
+        //Callers hold the session's monitor while queueing both frames.
+        //Past MAX_ANNOUNCED_TOPICS the session forgets its topics and announces them again as they come up,
+        //the client simply redefines an id it already knew.
+        ByteBuffer announce(String topic){
+            if (closed || announcedTopics.containsKey(topic)){
+                return null;
+            }
+            if (announcedTopics.size() >= MAX_ANNOUNCED_TOPICS){
+                forgetTopics();
+            }
+            var topicId = topicIds.acquire(topic);
+            announcedTopics.put(topic, topicId);
+            return encode(TOPIC, 0, topicId, topic.getBytes(StandardCharsets.UTF_8));
+        }
+
+        //The message's shared MSG frame, copied with the recipient's alias unless that is alias 0.
+        //The shared frame may carry an id released and reused since it was encoded, a copy fixes that too.
+        ByteBuffer messageFrame(String subscriberId, Message message){
+            var topicId = announcedTopics.getOrDefault(message.topic, 0);
+            var shared = message.binaryFrame(topicId);
+            var alias = clientAliases.getOrDefault(subscriberId, 0);
+            if (alias == 0 && shared.getInt(5) == topicId){
+                return shared;
+            }
+            var frame = ByteBuffer.allocate(shared.remaining());
+            frame.put(shared.duplicate()).flip();
+            frame.putInt(1, alias).putInt(5, topicId);
+            return frame.asReadOnlyBuffer();
+        }
+
+        //Releases the announced topic ids, called once the connection is closed
+        synchronized void close(){
+            closed = true;
+            forgetTopics();
+        }
+
+        private void forgetTopics(){
+            for (var topicId : announcedTopics.values()){
+                topicIds.release(topicId);
+            }
+            announcedTopics.clear();
+        }
+
+        void handle(byte opcode, int clientAlias, int topicAlias, byte[] payload) throws ProtocolException {
+            switch (opcode){
+                case REGISTER:
+                    var id = new String(payload, StandardCharsets.UTF_8);
+                    clientIds.put(clientAlias, id);
+                    clientAliases.put(id, clientAlias);
+                    if (publisherPort){
+                        Broker.registerPublisher(id, connection);
+                    }
+                    else {
+                        Broker.registerSubscriber(id, connection);
+                    }
+                    break;
+                case TOPIC:
+                    topics.put(topicAlias, new String(payload, StandardCharsets.UTF_8));
+                    break;
+                case PUB:
+                case APUB:
+                case RETAIN:
+                case ARETAIN:
+                    expectPort(true, opcode);
+                    var pubId = clientId(clientAlias);
+                    var topic = topic(topicAlias);
+                    var sequenced = opcode == APUB || opcode == ARETAIN;
+                    var retained = opcode == RETAIN || opcode == ARETAIN;
+                    if (sequenced && payload.length < Long.BYTES){
+                        throw new ProtocolException("Missing sequence number");
+                    }
+                    var message = sequenced ? Arrays.copyOfRange(payload, Long.BYTES, payload.length) : payload;
+                    BrokerLog.publish("Command from publisher: %s %s %s <%d bytes>",
+                            pubId, retained ? "retain" : "pub", topic, message.length);
+                    var published = new Message(topic, message);
+                    published.retained = retained;
+                    var sequence = sequenced ? Arrays.copyOf(payload, Long.BYTES) : NO_PAYLOAD;
+                    Broker.publish(pubId, published, connection, encode(OK, clientAlias, topicAlias, sequence));
+                    break;
+                case BATCH:
+                    expectPort(true, opcode);
+                    handleBatch(clientAlias, topicAlias, payload);
+                    break;
+                case SUB:
+                case UNSUB:
+                    expectPort(false, opcode);
+                    var subId = clientId(clientAlias);
+                    var pattern = topic(topicAlias);
+                    var verb = opcode == SUB ? "sub" : "unsub";
+                    var arguments = ByteBuffer.wrap(payload);
+                    if (arguments.remaining() >= Long.BYTES){
+                        verb += "@" + arguments.getLong();
+                    }
+                    var fromOffset = arguments.remaining() >= Long.BYTES ? arguments.getLong() : Broker.LATEST_OFFSET;
+                    if (fromOffset == Broker.LATEST_OFFSET){
+                        BrokerLog.log(BrokerLog.Level.INFO, "Command from subscriber: %s %s %s", subId, verb, pattern);
+                    }
+                    else {
+                        BrokerLog.log(BrokerLog.Level.INFO, "Command from subscriber: %s %s %s from:%d",
+                                subId, verb, pattern, fromOffset);
+                    }
+                    // a sequence number payload is echoed back, as for APUB
+                    var echoed = Arrays.copyOf(payload, Math.min(payload.length, Long.BYTES));
+                    if (opcode == SUB && !TopicTrie.isValidPattern(pattern)){
+                        BrokerLog.log(BrokerLog.Level.WARN, "Invalid topic pattern from subscriber %s: %s", subId, pattern);
+                        connection.send(encode(ERROR, clientAlias, topicAlias, echoed));
+                        break;
+                    }
+                    CatchUpConnection catchUp = null;
+                    if (opcode == SUB){
+                        catchUp = Broker.subscribeToTopic(subId, pattern, fromOffset);
+                    }
+                    else {
+                        Broker.unsubscribeFromTopic(subId, pattern);
+                    }
+                    connection.send(encode(OK, clientAlias, topicAlias, echoed));
+                    Broker.startReplay(catchUp);
+                    if (opcode == SUB && catchUp == null){
+                        Broker.deliverRetained(subId, List.of(pattern));
+                    }
+                    break;
+                case MSUB:
+                case MUNSUB:
+                    expectPort(false, opcode);
+                    handleBulkSubscription(opcode, clientAlias, topicAlias, payload);
+                    break;
+                case EXIT:
+                    var exitId = clientId(clientAlias);
+                    BrokerLog.log(BrokerLog.Level.INFO, "Command from %s: %s exit",
+                            publisherPort ? "publisher" : "subscriber", exitId);
+                    if (publisherPort){
+                        Broker.disconnectPublisherWithId(exitId);
+                    }
+                    else {
+                        Broker.disconnectSubscriberWithId(exitId);
+                    }
+                    break;
+                default:
+                    throw new ProtocolException(String.format("Unknown opcode: %d", opcode));
+            }
+        }
+
+        private void handleBatch(int clientAlias, int topicAlias, byte[] payload) throws ProtocolException {
+            var pubId = clientId(clientAlias);
+            var batch = ByteBuffer.wrap(payload);
+            try {
+                var sequence = batch.getLong();
+                var count = checkedCount(batch.getInt(), batch.remaining(), 2 * Integer.BYTES);
+                BrokerLog.publish("Command from publisher: %s bpub@%d %d", pubId, sequence, count);
+                var messages = new ArrayList<Message>(count);
+                for (int i = 0; i < count; i++){
+                    var topic = topic(batch.getInt());
+                    var message = new byte[checkedLength(batch.getInt())];
+                    batch.get(message);
+                    messages.add(new Message(topic, message));
+                }
+                Broker.publishBatch(pubId, messages, connection,
+                        encode(OK, clientAlias, topicAlias, Arrays.copyOf(payload, Long.BYTES)));
+            } catch (BufferUnderflowException e) {
+                throw new ProtocolException("Truncated batch");
+            }
+        }
+
+        private void handleBulkSubscription(byte opcode, int clientAlias, int topicAlias, byte[] payload)
+                throws ProtocolException {
+            var subId = clientId(clientAlias);
+            var bulk = ByteBuffer.wrap(payload);
+            try {
+                var sequence = bulk.getLong();
+                var count = checkedCount(bulk.getInt(), bulk.remaining(), Integer.BYTES);
+                var verb = opcode == MSUB ? "msub" : "munsub";
+                BrokerLog.log(BrokerLog.Level.INFO, "Command from subscriber: %s %s@%d <%d topics>",
+                        subId, verb, sequence, count);
+                var patterns = new ArrayList<String>(count);
+                for (int i = 0; i < count; i++){
+                    patterns.add(topic(bulk.getInt()));
+                }
+                var echoed = Arrays.copyOf(payload, Long.BYTES);
+                // one invalid pattern rejects the whole command, as in the text protocol
+                if (opcode == MSUB && !patterns.stream().allMatch(TopicTrie::isValidPattern)){
+                    BrokerLog.log(BrokerLog.Level.WARN, "Invalid topic pattern from subscriber %s: %s", subId, patterns);
+                    connection.send(encode(ERROR, clientAlias, topicAlias, echoed));
+                    return;
+                }
+                for (var pattern : patterns){
+                    if (opcode == MSUB){
+                        Broker.subscribeToTopic(subId, pattern);
+                    }
+                    else {
+                        Broker.unsubscribeFromTopic(subId, pattern);
+                    }
+                }
+                connection.send(encode(OK, clientAlias, topicAlias, echoed));
+                if (opcode == MSUB){
+                    Broker.deliverRetained(subId, patterns);
+                }
+            } catch (BufferUnderflowException e) {
+                throw new ProtocolException("Truncated bulk subscription");
+            }
+        }
+
+        private void expectPort(boolean publishers, byte opcode) throws ProtocolException {
+            if (publisherPort != publishers){
+                throw new ProtocolException(String.format("Opcode %d is not valid on this port", opcode));
+            }
+        }
+
+        private String clientId(int alias) throws ProtocolException {
+            var id = clientIds.get(alias);
+            if (id == null){
+                throw new ProtocolException(String.format("Unregistered client id: %d", alias));
+            }
+            return id;
+        }
+
+        private String topic(int alias) throws ProtocolException {
+            var topic = topics.get(alias);
+            if (topic == null){
+                throw new ProtocolException(String.format("Undefined topic id: %d", alias));
+            }
+            return topic;
+        }
+    }
+}
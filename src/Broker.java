@@ -1,20 +1,65 @@
+import java.io.BufferedInputStream;
 import java.io.BufferedReader;
+import java.io.DataInputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
-import java.io.PrintWriter;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.util.*;
-import java.util.stream.Collectors;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 //broker -s s_port -p p_port
 public class Broker {
 
-    private static final Map<String, Set<String>> topicSubscribers = new HashMap<>();
-    private static final Map<String, Socket> subscriberSockets = new HashMap<>();
-    private static final Map<String, Socket> publisherSockets = new HashMap<>();
+    static final long LATEST_OFFSET = -1;
+    private static final ByteBuffer OK_FRAME = encodeLine("OK");
+    private static final ByteBuffer ERR_FRAME = encodeLine("ERR");
+    private static final byte[] RETAIN = "retain".getBytes(StandardCharsets.UTF_8);
+    private static final int READ_BUFFER_SIZE = 8 * 1024;
+    private static final SubscriptionIndex subscriptionIndex = new SubscriptionIndex();
+    private static final Map<String, Connection> subscriberSockets = new ConcurrentHashMap<>();
+    private static final Map<String, Connection> publisherSockets = new ConcurrentHashMap<>();
+    // client ids carried by each connection, a connection is closed once the last one leaves
+    private static final Map<Connection, Set<String>> connectionClients = new ConcurrentHashMap<>();
     private static int subPort;
     private static int pubPort;
+    private static int eventLoops = 0;
+    private static int dispatchers = 0;
+    private static int queueCapacity = 1024;
+    private static OutboundQueue.OverflowPolicy overflowPolicy = null;
+    private static int writeBatchSize = 64;
+    private static long flushDeadlineNanos = 100_000;
+    private static boolean tcpNoDelay = false;
+    private static int sendBufferSize = 0;
+    private static int receiveBufferSize = 0;
+    private static Path storeDirectory = null;
+    private static MessageStore.FsyncPolicy fsyncPolicy = MessageStore.FsyncPolicy.fromArg("every:1000");
+    private static int segmentBytes = 64 * 1024 * 1024;
+    private static long retentionBytes = 0;
+    private static long retentionMillis = 0;
+    private static MessageStore messageStore = null;
+    private static long retainedBytes = 16 * 1024 * 1024;
+    // replaced in main once -retain-bytes is parsed
+    private static RetainedMessages retainedMessages = new RetainedMessages(retainedBytes);
+    private static int adminPort = 0;
+    private static AdminServer adminServer = null;
+    private static int peerPort = 0;
+    private static List<InetSocketAddress> peerAddresses = List.of();
+    private static Path sharedMemoryDirectory = null;
     private static ServerSocket publishersSocket;
     private static ServerSocket subscribersSocket;
     private static final List<Socket> openSockets = new LinkedList<>();
@@ -46,7 +91,19 @@ public class Broker {
             openSockets.forEach(socket -> closeSocket(socket, String.format("Failed to close socket port: %d", socket.getPort())));
             closeServerSocket(publishersSocket, "Failed to close publishers' socket");
             closeServerSocket(subscribersSocket, "Failed to close subscribers' socket");
+            NioBroker.shutdown();
+            Dispatcher.shutdown();
+            Federation.shutdown();
+            SharedMemoryTransport.shutdown();
+            if (adminServer != null){
+                adminServer.stop();
+            }
+            BrokerLog.flush();
             System.out.println("Closed open sockets");
+            if (messageStore != null){
+                messageStore.close();
+                System.out.println("Closed message store");
+            }
         };
     }
 
@@ -54,11 +111,43 @@ public class Broker {
 
         validateArgs(args);
 
+        retainedMessages = new RetainedMessages(retainedBytes);
+        if (storeDirectory != null){
+            messageStore = MessageStore.open(storeDirectory, fsyncPolicy, segmentBytes, retentionBytes, retentionMillis);
+            System.out.println(String.format("Opened message store with %d topics", messageStore.topicCount()));
+        }
+
+        if (adminPort > 0){
+            adminServer = AdminServer.start(adminPort, Broker::metricsText, Broker::metricsJson);
+            System.out.println(String.format("Serving metrics on 127.0.0.1:%d/metrics", adminServer.port()));
+        }
+
+        if (peerPort > 0 || !peerAddresses.isEmpty()){
+            Federation.start(peerPort, peerAddresses, subscriptionIndex);
+            System.out.println(String.format("Federating with %d peers, accepting peers on port %d",
+                    peerAddresses.size(), peerPort));
+        }
+
+        if (dispatchers > 0){
+            Dispatcher.start(dispatchers);
+            System.out.println(String.format("Dispatching publishes on %d threads", dispatchers));
+        }
+
+        if (sharedMemoryDirectory != null){
+            SharedMemoryTransport.start(sharedMemoryDirectory);
+            System.out.println(String.format("Accepting shared memory clients in %s", sharedMemoryDirectory));
+        }
+
         Runtime.getRuntime().addShutdownHook(new Thread(gracefulShutdownRunnable()));
 
+        if (eventLoops > 0){
+            serveWithEventLoops();
+            return;
+        }
+
         try {
-            publishersSocket = new ServerSocket(pubPort);
-            subscribersSocket = new ServerSocket(subPort);
+            publishersSocket = newServerSocket(pubPort);
+            subscribersSocket = newServerSocket(subPort);
             var pubMainThread = new Thread(pubMainRunnable());
             var subMainThread = new Thread(subMainRunnable());
             pubMainThread.start();
@@ -78,12 +167,56 @@ public class Broker {
         }
     }
 
+    private static ServerSocket newServerSocket(int port) throws IOException {
+        var serverSocket = new ServerSocket();
+        configureServerSocket(serverSocket);
+        serverSocket.bind(new InetSocketAddress(port));
+        return serverSocket;
+    }
+
+    //Receive buffers above 64K must be requested before binding so the window scale is negotiated
+    static void configureServerSocket(ServerSocket serverSocket) throws IOException {
+        if (receiveBufferSize > 0){
+            serverSocket.setReceiveBufferSize(receiveBufferSize);
+        }
+    }
+
+    static void configureSocket(Socket socket) throws IOException {
+        socket.setTcpNoDelay(tcpNoDelay);
+        if (sendBufferSize > 0){
+            socket.setSendBufferSize(sendBufferSize);
+        }
+        if (receiveBufferSize > 0){
+            socket.setReceiveBufferSize(receiveBufferSize);
+        }
+    }
+
+    static int writeBatchSize(){
+        return writeBatchSize;
+    }
+
+    private static void serveWithEventLoops(){
+        try {
+            NioBroker.serve(subPort, pubPort, eventLoops);
+        } catch (IOException e) {
+            if (!shutDown){
+                e.printStackTrace();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            if (!shutDown){
+                e.printStackTrace();
+            }
+        }
+    }
+
     private static Runnable subMainRunnable(){
 
         return () -> {
             while (true) {
                 try {
                     var subSocket = subscribersSocket.accept();
+                    configureSocket(subSocket);
                     synchronized (openSockets){
                         openSockets.add(subSocket);
                     }
@@ -104,6 +237,7 @@ public class Broker {
             while (true) {
                 try {
                     var pubSocket = publishersSocket.accept();
+                    configureSocket(pubSocket);
                     synchronized (openSockets){
                         openSockets.add(pubSocket);
                     }
@@ -121,28 +255,140 @@ public class Broker {
     private static void validateArgs(String[] args){
         var invalidArgsMsg = "Invalid arguments";
         var unknownArgTemplate = "Unknown argument: '%s'";
-        var validArgFormat = "Broker runs as follows: <broker -s s_port -p p_port>";
+        var validArgFormat = "Broker runs as follows: <broker -s s_port -p p_port [-loops event_loops] [-dispatchers dispatchers] "
+                + "[-queue queue_capacity] [-overflow block|drop-oldest|drop-newest|disconnect] "
+                + "[-batch write_batch] [-flush-us flush_deadline] [-nodelay true|false] "
+                + "[-sndbuf bytes] [-rcvbuf bytes] [-store directory] [-fsync every:N|interval:ms|os] "
+                + "[-segment-bytes bytes] [-retention-bytes bytes] [-retention-ms ms] [-retain-bytes bytes] "
+                + "[-log-level debug|info|warn|error|off] [-log-sample N] [-admin admin_port] "
+                + "[-peer-port peer_port] [-peers host:port,...] [-shm directory]>";
         var invalidPort = "Value '%s' is not valid for %s port";
+        var invalidValue = "Value '%s' is not valid for %s";
 
         final var pubPortArg = "-p";
         final var subPortArg = "-s";
+        final var eventLoopsArg = "-loops";
+        final var dispatchersArg = "-dispatchers";
+        final var queueCapacityArg = "-queue";
+        final var overflowPolicyArg = "-overflow";
+        final var writeBatchArg = "-batch";
+        final var flushDeadlineArg = "-flush-us";
+        final var tcpNoDelayArg = "-nodelay";
+        final var sendBufferArg = "-sndbuf";
+        final var receiveBufferArg = "-rcvbuf";
+        final var storeArg = "-store";
+        final var fsyncArg = "-fsync";
+        final var segmentBytesArg = "-segment-bytes";
+        final var retentionBytesArg = "-retention-bytes";
+        final var retentionMillisArg = "-retention-ms";
+        final var retainedBytesArg = "-retain-bytes";
+        final var logLevelArg = "-log-level";
+        final var logSampleArg = "-log-sample";
+        final var adminPortArg = "-admin";
+        final var peerPortArg = "-peer-port";
+        final var peersArg = "-peers";
+        final var sharedMemoryArg = "-shm";
 
         String pubPort = null;
         String subPort = null;
+        String eventLoops = null;
+        String dispatchers = null;
+        String queueCapacity = null;
+        String overflowPolicy = null;
+        String writeBatch = null;
+        String flushDeadline = null;
+        String tcpNoDelay = null;
+        String sendBuffer = null;
+        String receiveBuffer = null;
+        String store = null;
+        String fsync = null;
+        String segmentBytes = null;
+        String retentionBytes = null;
+        String retentionMillis = null;
+        String retainedBytes = null;
+        String logLevel = null;
+        String logSample = null;
+        String adminPort = null;
+        String peerPort = null;
+        String peers = null;
+        String sharedMemory = null;
 
-        if (args.length != 4){
+        if (args.length < 4 || args.length % 2 != 0){
             System.err.println(invalidArgsMsg);
             System.err.println(validArgFormat);
             System.exit(-1);
         }
 
-        for (int i = 0; i <= 2; i += 2){
+        for (int i = 0; i < args.length; i += 2){
             if (subPortArg.equals(args[i])) {
                 subPort = args[i + 1];
             }
             else if (pubPortArg.equals(args[i])) {
                 pubPort = args[i + 1];
             }
+            else if (eventLoopsArg.equals(args[i])) {
+                eventLoops = args[i + 1];
+            }
+            else if (dispatchersArg.equals(args[i])) {
+                dispatchers = args[i + 1];
+            }
+            else if (queueCapacityArg.equals(args[i])) {
+                queueCapacity = args[i + 1];
+            }
+            else if (overflowPolicyArg.equals(args[i])) {
+                overflowPolicy = args[i + 1];
+            }
+            else if (writeBatchArg.equals(args[i])) {
+                writeBatch = args[i + 1];
+            }
+            else if (flushDeadlineArg.equals(args[i])) {
+                flushDeadline = args[i + 1];
+            }
+            else if (tcpNoDelayArg.equals(args[i])) {
+                tcpNoDelay = args[i + 1];
+            }
+            else if (sendBufferArg.equals(args[i])) {
+                sendBuffer = args[i + 1];
+            }
+            else if (receiveBufferArg.equals(args[i])) {
+                receiveBuffer = args[i + 1];
+            }
+            else if (storeArg.equals(args[i])) {
+                store = args[i + 1];
+            }
+            else if (fsyncArg.equals(args[i])) {
+                fsync = args[i + 1];
+            }
+            else if (segmentBytesArg.equals(args[i])) {
+                segmentBytes = args[i + 1];
+            }
+            else if (retentionBytesArg.equals(args[i])) {
+                retentionBytes = args[i + 1];
+            }
+            else if (retentionMillisArg.equals(args[i])) {
+                retentionMillis = args[i + 1];
+            }
+            else if (retainedBytesArg.equals(args[i])) {
+                retainedBytes = args[i + 1];
+            }
+            else if (logLevelArg.equals(args[i])) {
+                logLevel = args[i + 1];
+            }
+            else if (logSampleArg.equals(args[i])) {
+                logSample = args[i + 1];
+            }
+            else if (adminPortArg.equals(args[i])) {
+                adminPort = args[i + 1];
+            }
+            else if (peerPortArg.equals(args[i])) {
+                peerPort = args[i + 1];
+            }
+            else if (peersArg.equals(args[i])) {
+                peers = args[i + 1];
+            }
+            else if (sharedMemoryArg.equals(args[i])) {
+                sharedMemory = args[i + 1];
+            }
             else {
                 System.err.println(invalidArgsMsg);
                 System.err.println(String.format(unknownArgTemplate, args[i]));
@@ -174,138 +420,805 @@ public class Broker {
             System.err.println(String.format(invalidPort, pubPort, "publishers'"));
             System.exit(-1);
         }
+
+        if (eventLoops != null){
+            Broker.eventLoops = parsePositiveArg(eventLoops, String.format(invalidValue, eventLoops, "event loops"));
+        }
+
+        if (dispatchers != null){
+            Broker.dispatchers = parsePositiveArg(dispatchers, String.format(invalidValue, dispatchers, "dispatchers"));
+        }
+
+        if (queueCapacity != null){
+            Broker.queueCapacity = parsePositiveArg(queueCapacity, String.format(invalidValue, queueCapacity, "queue capacity"));
+        }
+
+        if (overflowPolicy != null){
+            try {
+                Broker.overflowPolicy = OutboundQueue.OverflowPolicy.fromArg(overflowPolicy);
+            }
+            catch (IllegalArgumentException e){
+                System.err.println(invalidArgsMsg);
+                System.err.println(String.format(invalidValue, overflowPolicy, "overflow policy"));
+                System.exit(-1);
+            }
+        }
+
+        if (writeBatch != null){
+            Broker.writeBatchSize = parsePositiveArg(writeBatch, String.format(invalidValue, writeBatch, "write batch"));
+        }
+
+        if (flushDeadline != null){
+            Broker.flushDeadlineNanos = parsePositiveArg(flushDeadline,
+                    String.format(invalidValue, flushDeadline, "flush deadline")) * 1000L;
+        }
+
+        if (tcpNoDelay != null){
+            if (!"true".equals(tcpNoDelay) && !"false".equals(tcpNoDelay)){
+                System.err.println(invalidArgsMsg);
+                System.err.println(String.format(invalidValue, tcpNoDelay, "TCP_NODELAY"));
+                System.exit(-1);
+            }
+            Broker.tcpNoDelay = Boolean.parseBoolean(tcpNoDelay);
+        }
+
+        if (sendBuffer != null){
+            Broker.sendBufferSize = parsePositiveArg(sendBuffer, String.format(invalidValue, sendBuffer, "send buffer"));
+        }
+
+        if (receiveBuffer != null){
+            Broker.receiveBufferSize = parsePositiveArg(receiveBuffer,
+                    String.format(invalidValue, receiveBuffer, "receive buffer"));
+        }
+
+        if (store != null){
+            Broker.storeDirectory = Path.of(store);
+        }
+
+        if (fsync != null){
+            try {
+                Broker.fsyncPolicy = MessageStore.FsyncPolicy.fromArg(fsync);
+            }
+            catch (IllegalArgumentException e){
+                System.err.println(invalidArgsMsg);
+                System.err.println(String.format(invalidValue, fsync, "fsync policy"));
+                System.exit(-1);
+            }
+        }
+
+        if (segmentBytes != null){
+            Broker.segmentBytes = parsePositiveArg(segmentBytes, String.format(invalidValue, segmentBytes, "segment size"));
+        }
+
+        if (retentionBytes != null){
+            Broker.retentionBytes = parsePositiveLongArg(retentionBytes,
+                    String.format(invalidValue, retentionBytes, "retention size"));
+        }
+
+        if (retentionMillis != null){
+            Broker.retentionMillis = parsePositiveLongArg(retentionMillis,
+                    String.format(invalidValue, retentionMillis, "retention time"));
+        }
+
+        if (retainedBytes != null){
+            Broker.retainedBytes = parsePositiveLongArg(retainedBytes,
+                    String.format(invalidValue, retainedBytes, "retained messages budget"));
+        }
+
+        if (logLevel != null){
+            try {
+                BrokerLog.setLevel(BrokerLog.Level.fromArg(logLevel));
+            }
+            catch (IllegalArgumentException e){
+                System.err.println(invalidArgsMsg);
+                System.err.println(String.format(invalidValue, logLevel, "log level"));
+                System.exit(-1);
+            }
+        }
+
+        if (logSample != null){
+            BrokerLog.setSampleRate(parsePositiveArg(logSample, String.format(invalidValue, logSample, "log sampling")));
+        }
+
+        if (adminPort != null){
+            Broker.adminPort = parsePositiveArg(adminPort, String.format(invalidPort, adminPort, "admin"));
+        }
+
+        if (peerPort != null){
+            Broker.peerPort = parsePositiveArg(peerPort, String.format(invalidPort, peerPort, "peers'"));
+        }
+
+        if (peers != null){
+            var addresses = new ArrayList<InetSocketAddress>();
+            for (var peer : peers.split(",")){
+                var separator = peer.lastIndexOf(':');
+                var port = separator <= 0 ? "" : peer.substring(separator + 1);
+                addresses.add(InetSocketAddress.createUnresolved(peer.substring(0, Math.max(separator, 0)),
+                        parsePositiveArg(port, String.format(invalidValue, peer, "peer address"))));
+            }
+            Broker.peerAddresses = addresses;
+        }
+
+        if (sharedMemory != null){
+            Broker.sharedMemoryDirectory = Path.of(sharedMemory);
+        }
+
+        // event loops must never park waiting for a slow subscriber
+        if (Broker.overflowPolicy == OutboundQueue.OverflowPolicy.BLOCK && Broker.eventLoops > 0){
+            System.err.println(invalidArgsMsg);
+            System.err.println("Overflow policy 'block' cannot be used with event loops");
+            System.exit(-1);
+        }
+        if (Broker.overflowPolicy == null){
+            Broker.overflowPolicy = Broker.eventLoops > 0 ? OutboundQueue.OverflowPolicy.DROP_OLDEST
+                    : OutboundQueue.OverflowPolicy.BLOCK;
+        }
+    }
+
+    private static int parsePositiveArg(String value, String errMsg){
+        var parsed = parsePositiveLongArg(value, errMsg);
+        if (parsed > Integer.MAX_VALUE){
+            System.err.println("Invalid arguments");
+            System.err.println(errMsg);
+            System.exit(-1);
+        }
+        return (int) parsed;
+    }
+
+    private static long parsePositiveLongArg(String value, String errMsg){
+        try {
+            var parsed = Long.parseLong(value);
+            if (parsed > 0){
+                return parsed;
+            }
+        }
+        catch (NumberFormatException e){
+            // reported below
+        }
+        System.err.println("Invalid arguments");
+        System.err.println(errMsg);
+        System.exit(-1);
+        return -1;
     }
 
-    static synchronized void synchronizedLog(String message) {
-        System.out.println(message);
+    static <T> OutboundQueue<T> newOutboundQueue(){
+        return new OutboundQueue<>(queueCapacity, overflowPolicy, BrokerMetrics.enqueueToWrite);
+    }
+
+    //Encodes a protocol line once into a read-only frame that can be shared between connections
+    static ByteBuffer encodeLine(String line){
+        return ByteBuffer.wrap((line + '\n').getBytes(StandardCharsets.UTF_8)).asReadOnlyBuffer();
     }
 
     private static void readPubCommandAndReply(Socket pubSocket){
+        SocketConnection pubConnection = null;
         try {
-            var pubOutStream = new PrintWriter(pubSocket.getOutputStream(), true);
-            var pubInStream = new BufferedReader(new InputStreamReader(pubSocket.getInputStream()));
-            var inputLine = pubInStream.readLine();
-            while (inputLine != null) {
-                synchronizedLog(String.format("Command from publisher: %s", inputLine));
-                var split = inputLine.split(" ", 4);
-                synchronized (publisherSockets){
-                    publisherSockets.putIfAbsent(split[0], pubSocket);
-                }
-                if ("exit".equals(split[1])){
-                    disconnectPublisherWithId(split[0]);
-                }
-                else{
-                    sendMessageForTopic(split[3], split[2]);
-                    pubOutStream.println("OK");
+            pubConnection = new SocketConnection(pubSocket);
+            var pubRawStream = new BufferedInputStream(BrokerMetrics.counting(pubSocket.getInputStream()));
+            if (negotiatedBinary(pubRawStream)){
+                pubConnection.session = new BinaryProtocol.Session(pubConnection, true);
+                BinaryProtocol.readFrames(new DataInputStream(pubRawStream), pubConnection.session);
+                return;
+            }
+            // lines are handled in place in the buffer, which only grows for a line longer than it
+            var commands = new PublisherCommands(pubConnection);
+            var buffer = new byte[READ_BUFFER_SIZE];
+            var buffered = 0;
+            var read = pubRawStream.read(buffer);
+            while (read >= 0 && !commands.closed()) {
+                buffered += read;
+                var consumed = commands.lines(buffer, 0, buffered);
+                System.arraycopy(buffer, consumed, buffer, 0, buffered - consumed);
+                buffered -= consumed;
+                if (buffered == buffer.length){
+                    buffer = Arrays.copyOf(buffer, buffer.length * 2);
                 }
-                inputLine = pubInStream.readLine();
+                read = pubRawStream.read(buffer, buffered, buffer.length - buffered);
             }
+        } catch (ProtocolException e) {
+            System.err.println(String.format("Closing connection on port %d: %s", pubSocket.getPort(), e.getMessage()));
         } catch (IOException e) {
             synchronized (openSockets){
                 if (!shutDown && openSockets.contains(pubSocket)){
                     e.printStackTrace();
                 }
             }
+        } finally {
+            if (pubConnection != null){
+                pubConnection.close();
+                connectionClosed(pubConnection);
+            }
         }
     }
 
     private static void readSubCommandAndReply(Socket subSocket){
+        SocketConnection subConnection = null;
         try {
-            var subOutStream = new PrintWriter(subSocket.getOutputStream(), true);
-            var subInStream = new BufferedReader(new InputStreamReader(subSocket.getInputStream()));
+            subConnection = new SocketConnection(subSocket);
+            var subRawStream = new BufferedInputStream(BrokerMetrics.counting(subSocket.getInputStream()));
+            if (negotiatedBinary(subRawStream)){
+                subConnection.session = new BinaryProtocol.Session(subConnection, false);
+                BinaryProtocol.readFrames(new DataInputStream(subRawStream), subConnection.session);
+                return;
+            }
+            var subInStream = new BufferedReader(new InputStreamReader(subRawStream));
             var inputLine = subInStream.readLine();
             while (inputLine != null) {
-                synchronizedLog(String.format("Command from subscriber: %s", inputLine));
-                var split = inputLine.split(" ", 3);
-                synchronized (subscriberSockets){
-                    subscriberSockets.putIfAbsent(split[0], subSocket);
-                }
-                if ("exit".equals(split[1])){
-                    disconnectSubscriberWithId(split[0]);
-                }
-                else if ("sub".equals(split[1])){
-                    subscribeToTopic(split[0], split[2]);
-                }
-                else {
-                    unsubscribeFromTopic(split[0], split[2]);
-                }
-                subOutStream.println("OK");
+                handleSubCommand(inputLine, subConnection);
                 inputLine = subInStream.readLine();
             }
+        } catch (ProtocolException e) {
+            System.err.println(String.format("Closing connection on port %d: %s", subSocket.getPort(), e.getMessage()));
         } catch (IOException e) {
             synchronized (openSockets){
                 if (!shutDown && openSockets.contains(subSocket)){
                     e.printStackTrace();
                 }
             }
+        } finally {
+            if (subConnection != null){
+                subConnection.close();
+                connectionClosed(subConnection);
+            }
         }
     }
 
-    private static void subscribeToTopic(String subId, String topic) {
-        synchronized (topicSubscribers){
-            var topicSubscribers = Broker.topicSubscribers.getOrDefault(topic, new HashSet<>());
-            topicSubscribers.add(subId);
-            Broker.topicSubscribers.put(topic, topicSubscribers);
+    //Binary clients open with BinaryProtocol.MAGIC, a text command never starts with a NUL byte
+    private static boolean negotiatedBinary(BufferedInputStream inStream) throws IOException {
+        var magic = BinaryProtocol.MAGIC;
+        inStream.mark(magic.length);
+        var prefix = new byte[magic.length];
+        var read = inStream.read(prefix, 0, 1);
+        if (read == 1 && prefix[0] == magic[0]){
+            read += inStream.readNBytes(prefix, 1, magic.length - 1);
+            if (BinaryProtocol.startsWithMagic(prefix, read)){
+                return true;
+            }
         }
+        inStream.reset();
+        return false;
     }
 
-    private static void unsubscribeFromTopic(String subId, String topic) {
-        synchronized (topicSubscribers){
-            var topicSubscribers = Broker.topicSubscribers.get(topic);
-            topicSubscribers.remove(subId);
-            Broker.topicSubscribers.put(topic, topicSubscribers);
+    //'PUB_ID pub|retain TOPIC MESSAGE', parsed in place by the connection's PublisherCommands
+    static void handlePubCommand(CommandParser command, Connection pubConnection){
+        var pubId = command.string(0);
+        registerPublisher(pubId, pubConnection);
+        if (command.fields() < 3){
+            BrokerLog.log(BrokerLog.Level.WARN, "Invalid command from publisher: %s", command.line());
+            return;
+        }
+        if (BrokerLog.samplePublish()){
+            BrokerLog.log(BrokerLog.Level.INFO, "Command from publisher: %s", command.line());
         }
+        var message = new Message(command.string(2), command.bytes(3));
+        message.retained = command.verbEquals(1, RETAIN);
+        publish(pubId, message, pubConnection, okFrameFor(command.correlationId(1)));
     }
 
-    private static void sendMessageForTopic(String message, String topic){
+    //A batch once all of its entries were read, a publisher disconnecting in the middle of one never gets here
+    static void handlePubBatch(String pubId, String correlationId, List<Message> messages, Connection pubConnection){
+        registerPublisher(pubId, pubConnection);
+        publishBatch(pubId, messages, pubConnection, okFrameFor(correlationId));
+    }
+
+    //Commands may carry a correlation id as 'verb@id', which is echoed back as 'OK id'
+    //so clients can keep several commands in flight
+    static ByteBuffer okFrame(String verb){
+        var separator = verb.indexOf('@');
+        return okFrameFor(separator < 0 ? null : verb.substring(separator + 1));
+    }
 
-        List<Socket> subsSockets;
-        synchronized (topicSubscribers){
-            synchronized (subscriberSockets){
-                subsSockets = topicSubscribers.getOrDefault(topic, Set.of())
-                        .stream()
-                        .map(subscriberSockets::get)
-                        .collect(Collectors.toList());
+    static ByteBuffer okFrameFor(String correlationId){
+        return correlationId == null ? OK_FRAME : encodeLine("OK " + correlationId);
+    }
+
+    //A rejected command is answered 'ERR' or 'ERR id' instead of its OK
+    static ByteBuffer errorFrame(String verb){
+        var separator = verb.indexOf('@');
+        return separator < 0 ? ERR_FRAME : encodeLine("ERR " + verb.substring(separator + 1));
+    }
+
+    static String commandVerb(String verb){
+        var separator = verb.indexOf('@');
+        return separator < 0 ? verb : verb.substring(0, separator);
+    }
+
+    //'msub' and 'munsub' take a space separated list of topics and are acknowledged once.
+    //'sub TOPIC from:earliest|latest|OFFSET' replays the topic's log from that offset before going live.
+    //'offsets' makes the connection's messages carry their offset, the one to resume from is the last seen plus one.
+    static void handleSubCommand(String inputLine, Connection subConnection){
+        BrokerLog.log(BrokerLog.Level.INFO, "Command from subscriber: %s", inputLine);
+        var split = inputLine.split(" ", 3);
+        var verb = split.length < 2 ? "" : commandVerb(split[1]);
+        // every command but exit, mux and offsets names its topics
+        if (split.length < 2 || (split.length < 3 && !"exit".equals(verb) && !"mux".equals(verb)
+                && !"offsets".equals(verb))){
+            BrokerLog.log(BrokerLog.Level.WARN, "Invalid command from subscriber: %s", inputLine);
+            subConnection.send(split.length < 2 ? ERR_FRAME : errorFrame(split[1]));
+            return;
+        }
+        registerSubscriber(split[0], subConnection);
+        if (("sub".equals(verb) || "msub".equals(verb)) && !validPatterns(verb, split[2])){
+            BrokerLog.log(BrokerLog.Level.WARN, "Invalid topic pattern from subscriber: %s", inputLine);
+            subConnection.send(errorFrame(split[1]));
+            return;
+        }
+        CatchUpConnection catchUp = null;
+        List<String> subscribedTopics = List.of();
+        if ("exit".equals(verb)){
+            disconnectSubscriberWithId(split[0]);
+        }
+        else if ("mux".equals(verb)){
+            subConnection.multiplex();
+        }
+        else if ("offsets".equals(verb)){
+            subConnection.includeOffsets();
+        }
+        else if ("sub".equals(verb)){
+            var topicSplit = split[2].split(" ", 2);
+            if (topicSplit.length == 2){
+                catchUp = subscribeToTopic(split[0], topicSplit[0], startOffset(topicSplit[1]));
             }
+            else {
+                subscribeToTopic(split[0], split[2]);
+            }
+            // a replay already starts from a stored message, the retained one would repeat it
+            subscribedTopics = catchUp == null ? List.of(topicSplit[0]) : List.of();
         }
-        subsSockets.forEach(subSocket -> {
-            try {
-                var clientOutStream = new PrintWriter(subSocket.getOutputStream(), true);
-                clientOutStream.println(String.format("%s %s", topic, message));
-            } catch (IOException e) {
+        else if ("msub".equals(verb)){
+            subscribedTopics = List.of(split[2].split(" "));
+            for (var topic : subscribedTopics){
+                subscribeToTopic(split[0], topic);
+            }
+        }
+        else if ("munsub".equals(verb)){
+            for (var topic : split[2].split(" ")){
+                unsubscribeFromTopic(split[0], topic);
+            }
+        }
+        else {
+            unsubscribeFromTopic(split[0], split[2]);
+        }
+        subConnection.send(okFrame(split[1]));
+        startReplay(catchUp);
+        deliverRetained(split[0], subscribedTopics);
+    }
 
-                if (!shutDown){
-                    e.printStackTrace();
-                }
+    private static boolean validPatterns(String verb, String arguments){
+        var topics = "sub".equals(verb) ? new String[]{arguments.split(" ", 2)[0]} : arguments.split(" ");
+        for (var topic : topics){
+            if (!TopicTrie.isValidPattern(topic)){
+                return false;
+            }
+        }
+        return true;
+    }
+
+    //'from:earliest', 'from:latest' or 'from:OFFSET', anything else is treated as latest
+    static long startOffset(String from){
+        if ("from:earliest".equals(from)){
+            return 0;
+        }
+        if (from.matches("from:\\d+")){
+            try {
+                return Long.parseLong(from.substring("from:".length()));
             }
+            catch (NumberFormatException e){
+                // out of range, reported below
+            }
+        }
+        if (!"from:latest".equals(from)){
+            BrokerLog.log(BrokerLog.Level.WARN, "Invalid start offset '%s', subscribing from latest", from);
+        }
+        return LATEST_OFFSET;
+    }
+
+    static void registerPublisher(String pubId, Connection connection){
+        if (publisherSockets.putIfAbsent(pubId, connection) == null){
+            addClient(connection, pubId);
+        }
+    }
+
+    static void registerSubscriber(String subId, Connection connection){
+        if (subscriberSockets.putIfAbsent(subId, connection) == null){
+            addClient(connection, subId);
+        }
+    }
+
+    private static void addClient(Connection connection, String id){
+        connectionClients.compute(connection, (key, ids) -> {
+            var updated = ids == null ? ConcurrentHashMap.<String>newKeySet() : ids;
+            updated.add(id);
+            return updated;
         });
     }
 
-    private static void disconnectPublisherWithId(String id){
-        synchronized (publisherSockets){
-            var socket = publisherSockets.remove(id);
-            if (socket != null){
-                closeSocket(socket, String.format("Failed to disconnect publisher with id: '%s'", id));
-                synchronized (openSockets){
-                    openSockets.remove(socket);
+    //Returns true once the connection carries no other client id, or was never tracked
+    private static boolean removeClient(Connection connection, String id){
+        return connectionClients.computeIfPresent(connection, (key, ids) -> {
+            ids.remove(id);
+            return ids.isEmpty() ? null : ids;
+        }) == null;
+    }
+
+    //Frees the client ids a connection still carried when it went away, so they can connect again
+    static void connectionClosed(Connection connection){
+        var ids = connectionClients.remove(connection);
+        if (ids == null){
+            return;
+        }
+        for (var id : ids){
+            if (subscriberSockets.remove(id, connection)){
+                subscriptionIndex.removeSubscriber(id);
+                BrokerLog.log(BrokerLog.Level.INFO, "Freed resources of subscriber with id: %s", id);
+            }
+            else if (publisherSockets.remove(id, connection)){
+                BrokerMetrics.forgetPublisher(id);
+                BrokerLog.log(BrokerLog.Level.INFO, "Freed resources of publisher with id: %s", id);
+            }
+        }
+    }
+
+    //The connection is looked up again under the index's lock, a disconnect racing with the subscription
+    //would otherwise leave it pointing at a closed connection
+    static void subscribeToTopic(String subId, String topic) {
+        var connection = subscriberSockets.get(subId);
+        if (connection != null){
+            subscriptionIndex.subscribe(subId, connection, topic, () -> subscriberSockets.get(subId) == connection);
+        }
+    }
+
+    //Subscribes to a stored topic from a past offset. The returned subscription replays the log once
+    //startReplay is called, which callers do after acknowledging so the OK precedes the backlog.
+    //Patterns, topics without a log and LATEST_OFFSET subscribe live and return null.
+    static CatchUpConnection subscribeToTopic(String subId, String topic, long fromOffset) {
+        var connection = subscriberSockets.get(subId);
+        var log = messageStore == null || TopicTrie.isPattern(topic) ? null : messageStore.log(topic);
+        if (connection == null || log == null || fromOffset == LATEST_OFFSET){
+            subscribeToTopic(subId, topic);
+            return null;
+        }
+        var catchUp = new CatchUpConnection(subId, connection, topic, log, fromOffset);
+        // an existing live subscription is replaced, otherwise the index would keep it
+        subscriptionIndex.unsubscribe(subId, topic);
+        if (!subscriptionIndex.subscribe(subId, catchUp, topic, () -> subscriberSockets.get(subId) == connection)){
+            return null;
+        }
+        return catchUp;
+    }
+
+    //Sends the retained messages of newly subscribed topics or patterns, after the subscription's OK.
+    //A publish racing with the subscription may reach the subscriber before the older retained value.
+    static void deliverRetained(String subId, List<String> topics){
+        var connection = subscriberSockets.get(subId);
+        if (connection == null){
+            return;
+        }
+        for (var topic : topics){
+            if (TopicTrie.isPattern(topic)){
+                retainedMessages.matching(topic).forEach(retained -> connection.deliver(subId, retained));
+                continue;
+            }
+            var retained = retainedMessages.get(topic);
+            if (retained != null){
+                connection.deliver(subId, retained);
+            }
+        }
+    }
+
+    static void startReplay(CatchUpConnection catchUp){
+        if (catchUp != null){
+            new Thread(catchUp::replay).start();
+        }
+    }
+
+    static void unsubscribeFromTopic(String subId, String topic) {
+        subscriptionIndex.unsubscribe(subId, topic);
+    }
+
+    //Delivers a client's publish and acknowledges it, on the topic's dispatcher when there are any
+    static void publish(String pubId, Message message, Connection pubConnection, ByteBuffer okFrame){
+        if (Dispatcher.isRunning()){
+            Dispatcher.dispatch(pubId, message, true,
+                    () -> acknowledgePublish(pubConnection, okFrame, message.offset != Message.NO_OFFSET));
+            return;
+        }
+        sendMessageForTopic(pubId, message);
+        acknowledgePublish(pubConnection, okFrame, message.offset != Message.NO_OFFSET);
+    }
+
+    //With dispatchers the batch is split between the shards of its topics and acknowledged by the last one done
+    static void publishBatch(String pubId, List<Message> messages, Connection pubConnection, ByteBuffer okFrame){
+        if (Dispatcher.isRunning() && !messages.isEmpty()){
+            var remaining = new AtomicInteger(messages.size());
+            Runnable done = () -> {
+                if (remaining.decrementAndGet() == 0){
+                    acknowledgePublish(pubConnection, okFrame, allPersisted(messages));
                 }
+            };
+            for (var message : messages){
+                Dispatcher.dispatch(pubId, message, true, done);
+            }
+            return;
+        }
+        sendMessagesForTopics(pubId, messages);
+        acknowledgePublish(pubConnection, okFrame, allPersisted(messages));
+    }
+
+    private static boolean allPersisted(List<Message> messages){
+        for (var message : messages){
+            if (message.offset == Message.NO_OFFSET){
+                return false;
+            }
+        }
+        return true;
+    }
+
+    //Messages forwarded by a peer only come through here, so they are never forwarded again
+    static void publishForwarded(String peer, Message message){
+        if (Dispatcher.isRunning()){
+            Dispatcher.dispatch(peer, message, false, null);
+            return;
+        }
+        deliverLocally(peer, message, System.nanoTime());
+    }
+
+    static void sendMessageForTopic(String pubId, Message message){
+        deliverLocally(pubId, message, System.nanoTime());
+        Federation.forward(message);
+    }
+
+    //Publish to enqueue latency is measured from `receivedNanos`, which includes the wait for a dispatcher
+    static void deliverLocally(String pubId, Message message, long receivedNanos){
+        BrokerMetrics.published(pubId, message);
+        // persisted first, so a retained copy sent to a new subscriber already has its offset
+        persist(message);
+        if (message.retained){
+            retainedMessages.retain(message);
+        }
+        deliverToSubscribers(message, subscriptionIndex.subscribers(message.topic));
+        BrokerMetrics.publishToEnqueue.record(System.nanoTime() - receivedNanos);
+    }
+
+    //Resolves the subscribers of each distinct topic in the batch once and delivers in publish order.
+    //Every message of the batch is timed from the start of the batch.
+    static void sendMessagesForTopics(String pubId, List<Message> messages){
+        var start = System.nanoTime();
+        var resolved = new HashMap<String, SubscriptionIndex.Subscription[]>();
+        for (var message : messages){
+            BrokerMetrics.published(pubId, message);
+            persist(message);
+            deliverToSubscribers(message, resolved.computeIfAbsent(message.topic, subscriptionIndex::subscribers));
+            BrokerMetrics.publishToEnqueue.record(System.nanoTime() - start);
+            Federation.forward(message);
+        }
+    }
+
+    //Messages are still delivered live when they cannot be persisted, the message's offset stays unset
+    private static void persist(Message message){
+        if (messageStore == null){
+            return;
+        }
+        try {
+            message.offset = messageStore.append(message);
+        } catch (IOException | UncheckedIOException e) {
+            BrokerLog.log(BrokerLog.Level.ERROR, "Failed to persist message for topic %s: %s", message.topic, e.getMessage());
+        }
+    }
+
+    //With a store that syncs before acknowledging, the OK waits until the published messages are on disk.
+    //The OK would then promise that they are, so a publish that could not be persisted gets an error instead.
+    static void acknowledgePublish(Connection pubConnection, ByteBuffer okFrame, boolean persisted){
+        if (messageStore == null){
+            pubConnection.send(okFrame);
+            return;
+        }
+        if (!persisted && fsyncPolicy.syncsBeforeAck()){
+            pubConnection.send(errorFrameFor(okFrame));
+            return;
+        }
+        messageStore.afterSync(() -> pubConnection.send(okFrame));
+    }
+
+    //The error reply matching an OK frame of either protocol, a text OK line never starts with the binary opcode
+    static ByteBuffer errorFrameFor(ByteBuffer okFrame){
+        var ok = okFrame.duplicate();
+        if (ok.get(ok.position()) == BinaryProtocol.OK){
+            var frame = ByteBuffer.allocate(ok.remaining());
+            frame.put(ok).flip();
+            frame.put(0, BinaryProtocol.ERROR);
+            return frame.asReadOnlyBuffer();
+        }
+        // 'OK' or 'OK id'
+        var line = StandardCharsets.UTF_8.decode(ok).toString().trim();
+        return encodeLine("ERR" + line.substring("OK".length()));
+    }
+
+    private static void deliverToSubscribers(Message message, SubscriptionIndex.Subscription[] subscriptions){
+        for (var subscription : subscriptions){
+            if (!subscription.connection.deliver(subscription.subscriberId, message)){
+                subscriberOverflowed(subscription.subscriberId);
             }
         }
-        synchronizedLog(String.format("Freed resources of publisher with id: %s", id));
     }
 
-    private static void disconnectSubscriberWithId(String id){
+    //The outbound queue is the connection's, so every subscriber sharing it is disconnected
+    static void subscriberOverflowed(String subId){
+        BrokerLog.log(BrokerLog.Level.WARN, "Subscriber with id: %s overflowed its outbound queue", subId);
+        var connection = subscriberSockets.get(subId);
+        if (connection == null){
+            return;
+        }
+        connection.close();
+        connectionClosed(connection);
+    }
+
+    //Returns true if the connection was closed, which it is once no other client id uses it
+    static boolean disconnectPublisherWithId(String id){
+        var connection = publisherSockets.remove(id);
+        var closed = connection != null && removeClient(connection, id);
+        if (closed){
+            connection.close();
+        }
+        BrokerMetrics.forgetPublisher(id);
+        BrokerLog.log(BrokerLog.Level.INFO, "Freed resources of publisher with id: %s", id);
+        return closed;
+    }
+
+    static void disconnectSubscriberWithId(String id){
+
+        var connection = subscriberSockets.remove(id);
+        subscriptionIndex.removeSubscriber(id);
+        if (connection != null && removeClient(connection, id)){
+            connection.close();
+        }
+        if (connection != null && connection.droppedMessages() > 0){
+            BrokerLog.log(BrokerLog.Level.INFO, "Freed resources of subscriber with id: %s (dropped %d messages)",
+                    id, connection.droppedMessages());
+        }
+        else {
+            BrokerLog.log(BrokerLog.Level.INFO, "Freed resources of subscriber with id: %s", id);
+        }
+    }
+
+    static String metricsText(){
+        return BrokerMetrics.text(subscriberSockets, publisherSockets.size());
+    }
+
+    static String metricsJson(){
+        return BrokerMetrics.json(subscriberSockets, publisherSockets.size());
+    }
+
+    //Blocking connection served by its own reader thread, with a writer thread draining its outbound queue.
+    //The writer copies frames into one reusable buffer and writes it out when the batch is full,
+    //the queue runs dry or the flush deadline passes.
+    private static class SocketConnection implements Connection {
+
+        private final Socket socket;
+        private final OutputStream outStream;
+        private final byte[] writeBuffer = new byte[16 * 1024];
+        private int buffered = 0;
+        private final OutboundQueue<ByteBuffer> outbound = newOutboundQueue();
+        private volatile BinaryProtocol.Session session = null;
+        private volatile boolean multiplexed = false;
+        private volatile boolean offsets = false;
 
-        synchronized (subscriberSockets) {
-            var socket = subscriberSockets.remove(id);
-            synchronized (topicSubscribers) {
-                topicSubscribers.forEach((k, v) -> v.remove(id));
-                synchronized (openSockets) {
-                    openSockets.remove(socket);
-                    closeSocket(socket, String.format("Failed to disconnect subscriber with id: '%s'", id));
+        SocketConnection(Socket socket) throws IOException {
+            this.socket = socket;
+            this.outStream = socket.getOutputStream();
+            BrokerMetrics.connectionOpened();
+            new Thread(this::writeOutbound).start();
+        }
+
+        private void writeOutbound(){
+            try {
+                var frame = outbound.take();
+                while (frame != null){
+                    var batchStart = System.nanoTime();
+                    var batched = 0;
+                    while (frame != null){
+                        append(frame.duplicate());
+                        if (++batched >= writeBatchSize
+                                || System.nanoTime() - batchStart >= flushDeadlineNanos){
+                            break;
+                        }
+                        frame = outbound.poll();
+                    }
+                    flush();
+                    frame = outbound.take();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (IOException e) {
+                if (!shutDown && !socket.isClosed()){
+                    e.printStackTrace();
+                }
+            }
+        }
+
+        private void append(ByteBuffer frame) throws IOException {
+            while (frame.hasRemaining()){
+                var length = Math.min(frame.remaining(), writeBuffer.length - buffered);
+                frame.get(writeBuffer, buffered, length);
+                buffered += length;
+                if (buffered == writeBuffer.length){
+                    flush();
+                }
+            }
+        }
+
+        private void flush() throws IOException {
+            if (buffered > 0){
+                outStream.write(writeBuffer, 0, buffered);
+                BrokerMetrics.bytesWritten(buffered);
+                buffered = 0;
+            }
+        }
+
+        @Override
+        public void send(ByteBuffer reply) {
+            outbound.put(reply);
+        }
+
+        @Override
+        public boolean deliver(String subscriberId, Message message) {
+            var binarySession = session;
+            BrokerMetrics.delivered(message);
+            if (binarySession == null){
+                return outbound.offer(message.textFrame(subscriberId, multiplexed, offsets));
+            }
+            synchronized (binarySession){
+                var topicDefinition = binarySession.announce(message.topic);
+                if (topicDefinition != null){
+                    outbound.put(topicDefinition);
                 }
+                return outbound.offer(binarySession.messageFrame(subscriberId, message));
+            }
+        }
+
+        @Override
+        public void multiplex() {
+            multiplexed = true;
+        }
+
+        @Override
+        public void includeOffsets() {
+            offsets = true;
+        }
+
+        @Override
+        public boolean awaitCapacity() throws InterruptedException {
+            return outbound.awaitCapacity();
+        }
+
+        @Override
+        public long droppedMessages() {
+            return outbound.dropped();
+        }
+
+        @Override
+        public long deliveredMessages() {
+            return outbound.delivered();
+        }
+
+        @Override
+        public int backlog() {
+            return outbound.size();
+        }
+
+        @Override
+        public void close() {
+            if (outbound.close()){
+                BrokerMetrics.connectionClosed();
+                var binarySession = session;
+                if (binarySession != null){
+                    binarySession.close();
+                }
+            }
+            synchronized (openSockets) {
+                openSockets.remove(socket);
+                closeSocket(socket, String.format("Failed to close socket port: %d", socket.getPort()));
             }
         }
-        synchronizedLog(String.format("Freed resources of subscriber with id: %s", id));
     }
 }
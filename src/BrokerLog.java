@@ -0,0 +1,197 @@
+import java.util.Locale;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+//Asynchronous broker log. Callers copy the format and its arguments into a preallocated ring of entries
+//and a single drain thread formats and prints them, so no reader thread or event loop waits on console I/O.
+//Disabled levels and unsampled publish commands return before anything is formatted or stored.
+//A full ring drops the entry instead of blocking, the drain thread reports how many were dropped.
+final class BrokerLog {
+
+    enum Level {
+        DEBUG, INFO, WARN, ERROR, OFF;
+
+        static Level fromArg(String arg){
+            return valueOf(arg.toUpperCase(Locale.ROOT));
+        }
+    }
+
+    private static final class Entry {
+        String format;
+        Object first;
+        Object second;
+        Object third;
+        Object fourth;
+    }
+
+    private static final int CAPACITY = 8192;
+    private static final int DRAIN_BATCH = 256;
+
+    private static final Entry[] ring = new Entry[CAPACITY];
+    private static final ReentrantLock lock = new ReentrantLock();
+    private static final Condition notEmpty = lock.newCondition();
+    private static final Condition drained = lock.newCondition();
+    private static long head = 0;
+    private static long tail = 0;
+    private static long printed = 0;
+    private static long dropped = 0;
+    private static volatile Level level = Level.INFO;
+    private static volatile int sampleRate = 1;
+
+    static {
+        for (int i = 0; i < CAPACITY; i++){
+            ring[i] = new Entry();
+        }
+        var drainThread = new Thread(BrokerLog::drain, "broker-log");
+        drainThread.setDaemon(true);
+        drainThread.start();
+    }
+
+    private BrokerLog() {
+    }
+
+    static void setLevel(Level level){
+        BrokerLog.level = level;
+    }
+
+    //Logs 1 in `sampleRate` publish commands
+    static void setSampleRate(int sampleRate){
+        BrokerLog.sampleRate = sampleRate;
+    }
+
+    static boolean isEnabled(Level level){
+        return level.compareTo(BrokerLog.level) >= 0 && level != Level.OFF;
+    }
+
+    static void log(Level level, String format){
+        log(level, format, null, null, null, null);
+    }
+
+    static void log(Level level, String format, Object first){
+        log(level, format, first, null, null, null);
+    }
+
+    static void log(Level level, String format, Object first, Object second){
+        log(level, format, first, second, null, null);
+    }
+
+    static void log(Level level, String format, Object first, Object second, Object third){
+        log(level, format, first, second, third, null);
+    }
+
+    static void log(Level level, String format, Object first, Object second, Object third, Object fourth){
+        if (isEnabled(level)){
+            enqueue(format, first, second, third, fourth);
+        }
+    }
+
+    //Publish commands are the bulk of the log, so they are the ones subject to sampling
+    static void publish(String format, Object first){
+        publish(format, first, null, null, null);
+    }
+
+    static void publish(String format, Object first, Object second, Object third){
+        publish(format, first, second, third, null);
+    }
+
+    static void publish(String format, Object first, Object second, Object third, Object fourth){
+        if (samplePublish()){
+            enqueue(format, first, second, third, fourth);
+        }
+    }
+
+    //Whether to log this publish command, for callers that only build the arguments when it is
+    static boolean samplePublish(){
+        if (!isEnabled(Level.INFO)){
+            return false;
+        }
+        var rate = sampleRate;
+        return rate <= 1 || ThreadLocalRandom.current().nextInt(rate) == 0;
+    }
+
+    private static void enqueue(String format, Object first, Object second, Object third, Object fourth){
+        lock.lock();
+        try {
+            if (tail - head == CAPACITY){
+                dropped++;
+                return;
+            }
+            var entry = ring[(int) (tail % CAPACITY)];
+            entry.format = format;
+            entry.first = first;
+            entry.second = second;
+            entry.third = third;
+            entry.fourth = fourth;
+            if (tail++ == head){
+                notEmpty.signal();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static void drain(){
+        var batch = new Entry[DRAIN_BATCH];
+        for (int i = 0; i < DRAIN_BATCH; i++){
+            batch[i] = new Entry();
+        }
+        var lines = new StringBuilder();
+        while (true){
+            int count;
+            long droppedEntries;
+            lock.lock();
+            try {
+                while (tail == head){
+                    notEmpty.awaitUninterruptibly();
+                }
+                count = (int) Math.min(tail - head, DRAIN_BATCH);
+                for (int i = 0; i < count; i++){
+                    var entry = ring[(int) (head++ % CAPACITY)];
+                    batch[i].format = entry.format;
+                    batch[i].first = entry.first;
+                    batch[i].second = entry.second;
+                    batch[i].third = entry.third;
+                    batch[i].fourth = entry.fourth;
+                    entry.first = entry.second = entry.third = entry.fourth = null;
+                }
+                droppedEntries = dropped;
+                dropped = 0;
+            } finally {
+                lock.unlock();
+            }
+            lines.setLength(0);
+            for (int i = 0; i < count; i++){
+                var entry = batch[i];
+                lines.append(String.format(entry.format, entry.first, entry.second, entry.third, entry.fourth))
+                        .append(System.lineSeparator());
+                entry.first = entry.second = entry.third = entry.fourth = null;
+            }
+            if (droppedEntries > 0){
+                lines.append(String.format("(%d log entries dropped)", droppedEntries)).append(System.lineSeparator());
+            }
+            System.out.print(lines);
+            System.out.flush();
+            lock.lock();
+            try {
+                printed += count;
+                drained.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    //Waits until everything logged so far is printed, used on shutdown
+    static void flush(){
+        lock.lock();
+        try {
+            var logged = tail;
+            while (printed < logged){
+                drained.awaitUninterruptibly();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,244 @@
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+//Broker-wide counters and latency histograms. Counters are LongAdders, striped per thread, so reader threads,
+//event loops and writers update them without contending on a shared cache line. Per-subscriber counts and
+//backlogs live in the connections themselves and are only read when a snapshot is rendered.
+//Per-topic counters are dropped when the topic loses its last subscriber and per-publisher ones when it disconnects.
+//Both maps are also bounded: once one holds MAX_LABELS entries it is cleared, and the counters of the topics and
+//publishers still active start again from zero, which scrapers read as a reset.
+final class BrokerMetrics {
+
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+    private static final String[] QUANTILE_KEYS = {"p50", "p90", "p99", "p999"};
+    private static final int MAX_LABELS = 64 * 1024;
+
+    private static final class TopicCounters {
+        final LongAdder messagesIn = new LongAdder();
+        final LongAdder bytesIn = new LongAdder();
+        final LongAdder messagesOut = new LongAdder();
+    }
+
+    private static final ConcurrentHashMap<String, TopicCounters> topics = new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<String, LongAdder> publishedByClient = new ConcurrentHashMap<>();
+    private static final LongAdder bytesIn = new LongAdder();
+    private static final LongAdder bytesOut = new LongAdder();
+    private static final LongAdder connectionsOpened = new LongAdder();
+    private static final LongAdder connectionsClosed = new LongAdder();
+    //From reading a publish to queueing it for every subscriber, including persisting it
+    static final LatencyHistogram publishToEnqueue = new LatencyHistogram();
+    //From queueing a frame for a client to its writer taking it for the socket write
+    static final LatencyHistogram enqueueToWrite = new LatencyHistogram();
+
+    private BrokerMetrics() {
+    }
+
+    private static TopicCounters topic(String topic){
+        var counters = topics.get(topic);
+        return counters != null ? counters : bounded(topics).computeIfAbsent(topic, key -> new TopicCounters());
+    }
+
+    //Topic churn and publishers gone mid publish would otherwise grow the maps, and every scrape, for good
+    private static <V> ConcurrentHashMap<String, V> bounded(ConcurrentHashMap<String, V> counters){
+        if (counters.size() >= MAX_LABELS){
+            counters.clear();
+        }
+        return counters;
+    }
+
+    static void published(String pubId, Message message){
+        var counters = topic(message.topic);
+        counters.messagesIn.increment();
+        counters.bytesIn.add(message.payload.length);
+        var client = publishedByClient.get(pubId);
+        if (client == null){
+            client = bounded(publishedByClient).computeIfAbsent(pubId, key -> new LongAdder());
+        }
+        client.increment();
+    }
+
+    //Called by the connections for every message queued to a subscriber
+    static void delivered(Message message){
+        topic(message.topic).messagesOut.increment();
+    }
+
+    static void forgetPublisher(String pubId){
+        publishedByClient.remove(pubId);
+    }
+
+    //Called once a topic loses its last subscriber, a later publish starts its counters again
+    static void forgetTopic(String topic){
+        topics.remove(topic);
+    }
+
+    static void bytesRead(long bytes){
+        bytesIn.add(bytes);
+    }
+
+    static void bytesWritten(long bytes){
+        bytesOut.add(bytes);
+    }
+
+    static void connectionOpened(){
+        connectionsOpened.increment();
+    }
+
+    static void connectionClosed(){
+        connectionsClosed.increment();
+    }
+
+    //Counts the bytes read through a blocking socket's stream
+    static InputStream counting(InputStream inStream){
+        return new FilterInputStream(inStream) {
+            @Override
+            public int read() throws IOException {
+                var read = super.read();
+                if (read >= 0){
+                    bytesIn.increment();
+                }
+                return read;
+            }
+
+            @Override
+            public int read(byte[] bytes, int offset, int length) throws IOException {
+                var read = super.read(bytes, offset, length);
+                if (read > 0){
+                    bytesIn.add(read);
+                }
+                return read;
+            }
+        };
+    }
+
+    //Prometheus style text exposition, one sample per line
+    static String text(Map<String, Connection> subscribers, int publishers){
+        var out = new StringBuilder();
+        var opened = connectionsOpened.sum();
+        sample(out, "broker_connections_open", null, null, opened - connectionsClosed.sum());
+        sample(out, "broker_connections_opened_total", null, null, opened);
+        sample(out, "broker_publishers", null, null, publishers);
+        sample(out, "broker_subscribers", null, null, subscribers.size());
+        sample(out, "broker_bytes_in_total", null, null, bytesIn.sum());
+        sample(out, "broker_bytes_out_total", null, null, bytesOut.sum());
+        histogram(out, "broker_publish_to_enqueue_ns", publishToEnqueue.snapshot());
+        histogram(out, "broker_enqueue_to_write_ns", enqueueToWrite.snapshot());
+        for (var entry : new TreeMap<>(topics).entrySet()){
+            var counters = entry.getValue();
+            sample(out, "broker_topic_messages_in_total", "topic", entry.getKey(), counters.messagesIn.sum());
+            sample(out, "broker_topic_bytes_in_total", "topic", entry.getKey(), counters.bytesIn.sum());
+            sample(out, "broker_topic_messages_out_total", "topic", entry.getKey(), counters.messagesOut.sum());
+        }
+        for (var entry : new TreeMap<>(publishedByClient).entrySet()){
+            sample(out, "broker_client_messages_in_total", "client", entry.getKey(), entry.getValue().sum());
+        }
+        for (var entry : new TreeMap<>(subscribers).entrySet()){
+            var connection = entry.getValue();
+            sample(out, "broker_client_messages_out_total", "client", entry.getKey(), connection.deliveredMessages());
+            sample(out, "broker_client_messages_dropped_total", "client", entry.getKey(), connection.droppedMessages());
+            sample(out, "broker_client_backlog", "client", entry.getKey(), connection.backlog());
+        }
+        return out.toString();
+    }
+
+    private static void histogram(StringBuilder out, String name, LatencyHistogram.Snapshot snapshot){
+        for (var quantile : QUANTILES){
+            sample(out, name, "quantile", Double.toString(quantile), snapshot.percentile(quantile));
+        }
+        sample(out, name + "_max", null, null, snapshot.max);
+        sample(out, name + "_count", null, null, snapshot.count);
+    }
+
+    private static void sample(StringBuilder out, String name, String label, String labelValue, long value){
+        out.append(name);
+        if (label != null){
+            out.append('{').append(label).append("=\"");
+            for (var c : labelValue.toCharArray()){
+                if (c == '\\' || c == '"'){
+                    out.append('\\').append(c);
+                }
+                else if (c == '\n'){
+                    out.append("\\n");
+                }
+                else {
+                    out.append(c);
+                }
+            }
+            out.append("\"}");
+        }
+        out.append(' ').append(value).append('\n');
+    }
+
+    static String json(Map<String, Connection> subscribers, int publishers){
+        var out = new StringBuilder("{");
+        var opened = connectionsOpened.sum();
+        out.append("\"connections\":{\"open\":").append(opened - connectionsClosed.sum())
+                .append(",\"opened\":").append(opened)
+                .append(",\"publishers\":").append(publishers)
+                .append(",\"subscribers\":").append(subscribers.size()).append('}');
+        out.append(",\"bytes\":{\"in\":").append(bytesIn.sum()).append(",\"out\":").append(bytesOut.sum()).append('}');
+        out.append(",\"latency_ns\":{");
+        jsonHistogram(out, "publish_to_enqueue", publishToEnqueue.snapshot());
+        out.append(',');
+        jsonHistogram(out, "enqueue_to_write", enqueueToWrite.snapshot());
+        out.append("},\"topics\":{");
+        var first = true;
+        for (var entry : new TreeMap<>(topics).entrySet()){
+            var counters = entry.getValue();
+            first = jsonKey(out, entry.getKey(), first);
+            out.append("{\"messages_in\":").append(counters.messagesIn.sum())
+                    .append(",\"bytes_in\":").append(counters.bytesIn.sum())
+                    .append(",\"messages_out\":").append(counters.messagesOut.sum()).append('}');
+        }
+        out.append("},\"publishers\":{");
+        first = true;
+        for (var entry : new TreeMap<>(publishedByClient).entrySet()){
+            first = jsonKey(out, entry.getKey(), first);
+            out.append("{\"messages_in\":").append(entry.getValue().sum()).append('}');
+        }
+        out.append("},\"subscribers\":{");
+        first = true;
+        for (var entry : new TreeMap<>(subscribers).entrySet()){
+            var connection = entry.getValue();
+            first = jsonKey(out, entry.getKey(), first);
+            out.append("{\"messages_out\":").append(connection.deliveredMessages())
+                    .append(",\"dropped\":").append(connection.droppedMessages())
+                    .append(",\"backlog\":").append(connection.backlog()).append('}');
+        }
+        return out.append("}}\n").toString();
+    }
+
+    private static void jsonHistogram(StringBuilder out, String name, LatencyHistogram.Snapshot snapshot){
+        out.append('"').append(name).append("\":{\"count\":").append(snapshot.count)
+                .append(",\"mean\":").append(String.format(Locale.ROOT, "%.1f", snapshot.mean()));
+        for (int i = 0; i < QUANTILES.length; i++){
+            out.append(",\"").append(QUANTILE_KEYS[i]).append("\":").append(snapshot.percentile(QUANTILES[i]));
+        }
+        out.append(",\"max\":").append(snapshot.max).append('}');
+    }
+
+    private static boolean jsonKey(StringBuilder out, String key, boolean first){
+        if (!first){
+            out.append(',');
+        }
+        out.append('"');
+        for (var c : key.toCharArray()){
+            if (c == '\\' || c == '"'){
+                out.append('\\').append(c);
+            }
+            else if (c < 0x20){
+                out.append(String.format("\\u%04x", (int) c));
+            }
+            else {
+                out.append(c);
+            }
+        }
+        out.append("\":");
+        return false;
+    }
+}
@@ -0,0 +1,117 @@
+import java.nio.ByteBuffer;
+
+//Subscription that replays a topic's log from a past offset before going live.
+//While the replay runs, live messages are ignored: they are in the log too and the replay reaches them.
+//The switch to live happens once the replay has caught up with the end of the log, after which live
+//messages the replay already covered are skipped, so every offset is delivered once and none is missed.
+final class CatchUpConnection implements Connection {
+
+    private final String subscriberId;
+    private final Connection connection;
+    private final String topic;
+    private final TopicLog log;
+    private final long fromOffset;
+    private volatile boolean live = false;
+    private long liveFromOffset = Long.MAX_VALUE;
+
+    CatchUpConnection(String subscriberId, Connection connection, String topic, TopicLog log, long fromOffset) {
+        this.subscriberId = subscriberId;
+        this.connection = connection;
+        this.topic = topic;
+        this.log = log;
+        this.fromOffset = fromOffset;
+    }
+
+    @Override
+    public void send(ByteBuffer reply) {
+        connection.send(reply);
+    }
+
+    @Override
+    public boolean deliver(String subscriberId, Message message) {
+        // the replay checks for the end of the log under the same lock before going live
+        if (!live){
+            synchronized (this){
+                if (!live){
+                    return true;
+                }
+            }
+        }
+        if (message.offset != Message.NO_OFFSET && message.offset < liveFromOffset){
+            return true;
+        }
+        return connection.deliver(subscriberId, message);
+    }
+
+    @Override
+    public void multiplex() {
+        connection.multiplex();
+    }
+
+    @Override
+    public void includeOffsets() {
+        connection.includeOffsets();
+    }
+
+    @Override
+    public boolean awaitCapacity() throws InterruptedException {
+        return connection.awaitCapacity();
+    }
+
+    @Override
+    public long droppedMessages() {
+        return connection.droppedMessages();
+    }
+
+    @Override
+    public long deliveredMessages() {
+        return connection.deliveredMessages();
+    }
+
+    @Override
+    public int backlog() {
+        return connection.backlog();
+    }
+
+    @Override
+    public void close() {
+        connection.close();
+    }
+
+    //Runs on its own thread, so a long replay never holds up the live fan-out of the topic.
+    //Replayed messages wait for room in the outbound queue instead of overflowing it.
+    void replay(){
+        var next = fromOffset;
+        while (true){
+            next = log.read(next, this::deliverReplayed);
+            if (next < 0){
+                return;
+            }
+            synchronized (this){
+                if (log.nextOffset() <= next){
+                    liveFromOffset = Math.max(next, fromOffset);
+                    live = true;
+                    return;
+                }
+            }
+        }
+    }
+
+    private boolean deliverReplayed(long offset, byte[] payload){
+        try {
+            if (!connection.awaitCapacity()){
+                return false;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        var message = new Message(topic, payload);
+        message.offset = offset;
+        if (!connection.deliver(subscriberId, message)){
+            Broker.subscriberOverflowed(subscriberId);
+            return false;
+        }
+        return true;
+    }
+}
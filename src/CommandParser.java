@@ -0,0 +1,143 @@
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+//Flyweight over one text protocol line in a byte buffer, split on spaces like String.split(" ", limit).
+//Parsing only records where each field starts and ends, nothing is copied or decoded.
+//Strings are made for ids and topics only, through a small cache of the values recently seen on the
+//connection, so a client repeating its id and topics does not allocate them again. One parser per connection.
+final class CommandParser {
+
+    private static final int MAX_FIELDS = 4;
+    private static final int CACHED_STRINGS = 256;
+    private static final byte[] EMPTY = new byte[0];
+
+    private final int[] fieldStart = new int[MAX_FIELDS];
+    private final int[] fieldEnd = new int[MAX_FIELDS];
+    private final byte[][] cachedBytes = new byte[CACHED_STRINGS][];
+    private final String[] cachedStrings = new String[CACHED_STRINGS];
+    private byte[] bytes;
+    private int start;
+    private int end;
+    private int fields;
+
+    //Splits bytes[start, end) into at most `limit` fields, the last one keeping any further spaces
+    void parse(byte[] bytes, int start, int end, int limit){
+        this.bytes = bytes;
+        this.start = start;
+        this.end = end;
+        fields = 0;
+        var fieldFrom = start;
+        for (int i = start; i < end && fields < limit - 1; i++){
+            if (bytes[i] == ' '){
+                fieldStart[fields] = fieldFrom;
+                fieldEnd[fields++] = i;
+                fieldFrom = i + 1;
+            }
+        }
+        fieldStart[fields] = fieldFrom;
+        fieldEnd[fields++] = end;
+    }
+
+    int fields(){
+        return fields;
+    }
+
+    //The field decoded to a String, "" when the line has fewer fields
+    String string(int field){
+        if (field >= fields){
+            return "";
+        }
+        return cached(fieldStart[field], fieldEnd[field]);
+    }
+
+    //A copy of the field's bytes, for payloads that outlive the buffer
+    byte[] bytes(int field){
+        if (field >= fields || fieldStart[field] == fieldEnd[field]){
+            return EMPTY;
+        }
+        return Arrays.copyOfRange(bytes, fieldStart[field], fieldEnd[field]);
+    }
+
+    boolean equals(int field, byte[] value){
+        return field < fields && Arrays.equals(bytes, fieldStart[field], fieldEnd[field], value, 0, value.length);
+    }
+
+    //Compares a command verb, ignoring its '@id' suffix
+    boolean verbEquals(int field, byte[] verb){
+        return field < fields && Arrays.equals(bytes, fieldStart[field], verbEnd(field), verb, 0, verb.length);
+    }
+
+    boolean startsWith(int field, byte[] prefix){
+        return field < fields && fieldEnd[field] - fieldStart[field] >= prefix.length
+                && Arrays.equals(bytes, fieldStart[field], fieldStart[field] + prefix.length, prefix, 0, prefix.length);
+    }
+
+    //The '@id' suffix of a command verb, null without one
+    String correlationId(int field){
+        var verbEnd = verbEnd(field);
+        if (field >= fields || verbEnd == fieldEnd[field]){
+            return null;
+        }
+        return new String(bytes, verbEnd + 1, fieldEnd[field] - verbEnd - 1, StandardCharsets.UTF_8);
+    }
+
+    //The field as an int like Integer.parseInt, `invalid` when it is not one
+    int intValue(int field, int invalid){
+        if (field >= fields || fieldStart[field] == fieldEnd[field]){
+            return invalid;
+        }
+        var i = fieldStart[field];
+        var negative = bytes[i] == '-';
+        if (negative || bytes[i] == '+'){
+            if (++i == fieldEnd[field]){
+                return invalid;
+            }
+        }
+        long value = 0;
+        for (; i < fieldEnd[field]; i++){
+            var digit = bytes[i] - '0';
+            if (digit < 0 || digit > 9){
+                return invalid;
+            }
+            value = value * 10 + digit;
+            if (value > Integer.MAX_VALUE + 1L){
+                return invalid;
+            }
+        }
+        value = negative ? -value : value;
+        return value > Integer.MAX_VALUE ? invalid : (int) value;
+    }
+
+    //The whole line, for logging
+    String line(){
+        return new String(bytes, start, end - start, StandardCharsets.UTF_8);
+    }
+
+    private int verbEnd(int field){
+        if (field >= fields){
+            return start;
+        }
+        for (int i = fieldStart[field]; i < fieldEnd[field]; i++){
+            if (bytes[i] == '@'){
+                return i;
+            }
+        }
+        return fieldEnd[field];
+    }
+
+    //Direct mapped by content hash, a colliding value simply replaces the previous one
+    private String cached(int from, int to){
+        var hash = 1;
+        for (int i = from; i < to; i++){
+            hash = 31 * hash + bytes[i];
+        }
+        var slot = IntSet.mix(hash) & (CACHED_STRINGS - 1);
+        var cached = cachedBytes[slot];
+        if (cached != null && Arrays.equals(bytes, from, to, cached, 0, cached.length)){
+            return cachedStrings[slot];
+        }
+        cachedBytes[slot] = Arrays.copyOfRange(bytes, from, to);
+        cachedStrings[slot] = new String(bytes, from, to - from, StandardCharsets.UTF_8);
+        return cachedStrings[slot];
+    }
+}
@@ -0,0 +1,32 @@
+import java.nio.ByteBuffer;
+
+//A client connection of the broker, independent of the I/O model that serves it
+interface Connection {
+
+    //Replies to the client's own commands, never dropped. Frames may be shared read-only
+    //between connections, so implementations must write through a duplicate().
+    void send(ByteBuffer reply);
+
+    //Topic messages for one of the subscribers the connection carries, in the connection's wire format and
+    //subject to the outbound queue's overflow policy. Returns false when the client overflowed and should be disconnected.
+    boolean deliver(String subscriberId, Message message);
+
+    //From now on every delivery names its recipient, for text clients carrying several subscriber ids
+    void multiplex();
+
+    //From now on text deliveries carry the message's offset in its topic's log, binary ones always do
+    void includeOffsets();
+
+    //Blocks until the outbound queue has room, returns false once the connection is closed
+    boolean awaitCapacity() throws InterruptedException;
+
+    long droppedMessages();
+
+    //Messages queued to the client so far
+    long deliveredMessages();
+
+    //Frames waiting in the outbound queue
+    int backlog();
+
+    void close();
+}
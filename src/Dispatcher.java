@@ -0,0 +1,127 @@
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+//Optional dispatch stage: K dispatcher threads, each the single writer for a hash partition of the topics.
+//Reader threads and event loops hand every publish to its topic's shard through a lock-free MPSC queue
+//instead of fanning out themselves. A topic's messages are persisted, retained, delivered and forwarded by
+//one thread, in the order they reached its shard, so the per-topic log appends never contend and the
+//fan-out scales with the number of shards. Publishers are acknowledged by the shard once it is done.
+final class Dispatcher {
+
+    //Messages a shard may have waiting before the threads handing it more are slowed down
+    private static final int SHARD_CAPACITY = 64 * 1024;
+    private static final long BACKOFF_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+    private static final int IDLE_SPINS = 100;
+
+    private static final class Dispatch {
+        final String pubId;
+        final Message message;
+        final boolean forward;
+        final Runnable done;
+        final long receivedNanos;
+
+        Dispatch(String pubId, Message message, boolean forward, Runnable done) {
+            this.pubId = pubId;
+            this.message = message;
+            this.forward = forward;
+            this.done = done;
+            this.receivedNanos = System.nanoTime();
+        }
+    }
+
+    private static Shard[] shards = new Shard[0];
+    private static volatile boolean shutDown = false;
+
+    private Dispatcher() {
+    }
+
+    static void start(int shardCount){
+        var started = new Shard[shardCount];
+        for (int i = 0; i < shardCount; i++){
+            started[i] = new Shard();
+            var thread = new Thread(started[i]::run, String.format("broker-dispatcher-%d", i));
+            thread.setDaemon(true);
+            started[i].thread = thread;
+            thread.start();
+        }
+        shards = started;
+    }
+
+    static boolean isRunning(){
+        return shards.length > 0;
+    }
+
+    static void shutdown(){
+        shutDown = true;
+        for (var shard : shards){
+            LockSupport.unpark(shard.thread);
+        }
+    }
+
+    //Hands the message to its topic's shard. `forward` sends it on to interested peers afterwards and
+    //`done`, if any, runs on the shard once the message is delivered.
+    static void dispatch(String pubId, Message message, boolean forward, Runnable done){
+        var shard = shards[(message.topic.hashCode() & Integer.MAX_VALUE) % shards.length];
+        shard.offer(new Dispatch(pubId, message, forward, done));
+    }
+
+    private static final class Shard {
+
+        private final MpscQueue<Dispatch> queue = new MpscQueue<>();
+        private final AtomicInteger pending = new AtomicInteger();
+        private volatile boolean sleeping = false;
+        private Thread thread;
+
+        void offer(Dispatch dispatch){
+            // backpressure towards the publishers' readers when the shard falls far behind
+            while (pending.get() >= SHARD_CAPACITY && !shutDown){
+                LockSupport.parkNanos(BACKOFF_NANOS);
+            }
+            pending.incrementAndGet();
+            queue.offer(dispatch);
+            if (sleeping){
+                LockSupport.unpark(thread);
+            }
+        }
+
+        void run(){
+            var idle = 0;
+            while (!shutDown){
+                var dispatch = queue.poll();
+                if (dispatch == null){
+                    if (++idle < IDLE_SPINS){
+                        Thread.onSpinWait();
+                        continue;
+                    }
+                    // the producers check `sleeping` after queueing, so either they see it or this sees their item
+                    sleeping = true;
+                    if (queue.isEmpty() && !shutDown){
+                        LockSupport.park(this);
+                    }
+                    sleeping = false;
+                    idle = 0;
+                    continue;
+                }
+                idle = 0;
+                pending.decrementAndGet();
+                handle(dispatch);
+            }
+        }
+
+        private void handle(Dispatch dispatch){
+            try {
+                Broker.deliverLocally(dispatch.pubId, dispatch.message, dispatch.receivedNanos);
+                if (dispatch.forward){
+                    Federation.forward(dispatch.message);
+                }
+            } catch (RuntimeException e) {
+                BrokerLog.log(BrokerLog.Level.ERROR, "Failed to dispatch message for topic %s: %s",
+                        dispatch.message.topic, e);
+            }
+            if (dispatch.done != null){
+                dispatch.done.run();
+            }
+        }
+    }
+}
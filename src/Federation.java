@@ -0,0 +1,360 @@
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+//Cluster mode: brokers peer over TCP and forward each publish to the peers whose own clients subscribed to it.
+//A broker dials every peer it is given. The link it dialed carries its forwards to that peer, and the peer
+//answers on it with its interest: the topics and patterns with local subscribers, sent whole on connect and
+//then as they change. Forwarded messages are delivered to local subscribers only and never forwarded again,
+//so a publish reaches each interested peer once and in one hop, which needs every broker to list all the others.
+//Frames are type(1) flags(1) topic length(2) payload length(4) followed by the topic and the payload.
+final class Federation {
+
+    static final byte INTEREST = 1;
+    static final byte FORWARD = 2;
+    //INTEREST flag: the topic gained its first subscriber, cleared when it lost its last one
+    static final byte INTERESTED = 1;
+    //FORWARD flag: the message also becomes the topic's retained message
+    static final byte RETAINED = 1;
+    private static final int HEADER_SIZE = 8;
+    //Longest topic the two byte length can carry, longer ones are served locally only
+    static final int MAX_TOPIC_BYTES = 0xFFFF;
+    private static final long RECONNECT_MILLIS = 1000;
+    private static final byte[] NO_PAYLOAD = new byte[0];
+
+    private static final List<Peer> peers = new CopyOnWriteArrayList<>();
+    private static final List<InboundLink> inboundLinks = new CopyOnWriteArrayList<>();
+    private static SubscriptionIndex subscriptionIndex;
+    private static ServerSocket peersSocket;
+    private static volatile boolean shutDown = false;
+
+    private Federation() {
+    }
+
+    //Listens for peers on `peerPort` (0 for none) and keeps a link open to each of `peerAddresses`
+    static void start(int peerPort, List<InetSocketAddress> peerAddresses, SubscriptionIndex subscriptionIndex)
+            throws IOException {
+        Federation.subscriptionIndex = subscriptionIndex;
+        subscriptionIndex.setInterestListener(Federation::interestChanged);
+        if (peerPort > 0){
+            peersSocket = new ServerSocket();
+            Broker.configureServerSocket(peersSocket);
+            peersSocket.bind(new InetSocketAddress(peerPort));
+            var acceptor = new Thread(Federation::acceptPeers, "federation-acceptor");
+            acceptor.setDaemon(true);
+            acceptor.start();
+        }
+        for (var address : peerAddresses){
+            var peer = new Peer(address);
+            peers.add(peer);
+            var dialer = new Thread(peer::maintainLink, String.format("federation-%s", peer.name));
+            dialer.setDaemon(true);
+            dialer.start();
+        }
+    }
+
+    static void shutdown(){
+        shutDown = true;
+        if (peersSocket != null){
+            try {
+                peersSocket.close();
+            } catch (IOException e) {
+                System.err.println("Failed to close peers' socket");
+            }
+        }
+        peers.forEach(Peer::disconnect);
+        inboundLinks.forEach(InboundLink::close);
+    }
+
+    //Sends a locally published message to every connected peer interested in its topic, encoded once for all of them.
+    //Retained messages go to every peer, so a client subscribing later on any node finds the topic's value.
+    static void forward(Message message){
+        ByteBuffer frame = null;
+        for (var peer : peers){
+            if (message.retained || peer.wants(message.topic)){
+                if (frame == null){
+                    frame = encode(FORWARD, message.retained ? RETAINED : 0, message.topic, message.payload);
+                    if (frame == null){
+                        return;
+                    }
+                }
+                peer.forward(frame);
+            }
+        }
+    }
+
+    private static void interestChanged(String topic, boolean interested){
+        if (inboundLinks.isEmpty()){
+            return;
+        }
+        var frame = encode(INTEREST, interested ? INTERESTED : 0, topic, NO_PAYLOAD);
+        if (frame == null){
+            return;
+        }
+        for (var link : inboundLinks){
+            link.outbound.put(frame);
+        }
+    }
+
+    //Returns null for a topic too long for the frame header, it is logged and not sent
+    static ByteBuffer encode(byte type, byte flags, String topic, byte[] payload){
+        var topicBytes = topic.getBytes(StandardCharsets.UTF_8);
+        if (topicBytes.length > MAX_TOPIC_BYTES){
+            BrokerLog.log(BrokerLog.Level.WARN, "Not federating topic of %d bytes, the limit is %d",
+                    topicBytes.length, MAX_TOPIC_BYTES);
+            return null;
+        }
+        var frame = ByteBuffer.allocate(HEADER_SIZE + topicBytes.length + payload.length);
+        frame.put(type).put(flags).putShort((short) topicBytes.length).putInt(payload.length)
+                .put(topicBytes).put(payload).flip();
+        return frame.asReadOnlyBuffer();
+    }
+
+    private interface FrameHandler {
+        void handle(byte type, byte flags, String topic, byte[] payload) throws ProtocolException;
+    }
+
+    //Blocking read loop, returns when the link is closed
+    private static void readFrames(InputStream stream, FrameHandler handler) throws IOException {
+        var inStream = new DataInputStream(BrokerMetrics.counting(stream));
+        while (true){
+            byte type;
+            try {
+                type = inStream.readByte();
+            } catch (EOFException e) {
+                return;
+            }
+            var flags = inStream.readByte();
+            var topicLength = inStream.readUnsignedShort();
+            if (topicLength == 0){
+                throw new ProtocolException("Invalid topic length: 0");
+            }
+            var topic = new byte[topicLength];
+            var length = inStream.readInt();
+            if (length < 0 || length > BinaryProtocol.MAX_PAYLOAD_SIZE){
+                throw new ProtocolException(String.format("Invalid payload length: %d", length));
+            }
+            var payload = new byte[length];
+            inStream.readFully(topic);
+            inStream.readFully(payload);
+            handler.handle(type, flags, new String(topic, StandardCharsets.UTF_8), payload);
+        }
+    }
+
+    //Writes queued frames until the queue is closed, flushing whenever it runs dry
+    private static void writeFrames(Socket socket, OutboundQueue<ByteBuffer> outbound){
+        try {
+            var outStream = new BufferedOutputStream(socket.getOutputStream(), 16 * 1024);
+            var channel = Channels.newChannel(outStream);
+            var frame = outbound.take();
+            while (frame != null){
+                // frames are shared between links, each one writes through its own view
+                var view = frame.duplicate();
+                while (view.hasRemaining()){
+                    BrokerMetrics.bytesWritten(channel.write(view));
+                }
+                frame = outbound.poll();
+                if (frame == null){
+                    outStream.flush();
+                    frame = outbound.take();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            // the reading side notices the broken link as well and closes it
+        }
+        closeQuietly(socket);
+    }
+
+    private static void closeQuietly(Socket socket){
+        try {
+            socket.close();
+        } catch (IOException e) {
+            System.err.println(String.format("Failed to close peer socket port: %d", socket.getPort()));
+        }
+    }
+
+    private static void acceptPeers(){
+        while (!shutDown){
+            try {
+                var socket = peersSocket.accept();
+                Broker.configureSocket(socket);
+                var link = new InboundLink(socket);
+                var reader = new Thread(link::serve, String.format("federation-in-%s", link.name));
+                reader.setDaemon(true);
+                reader.start();
+            } catch (IOException e) {
+                if (!shutDown){
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    //Link a peer dialed: our interest goes out on it and the peer's forwards come in
+    private static final class InboundLink {
+
+        private final Socket socket;
+        private final String name;
+        private final OutboundQueue<ByteBuffer> outbound = Broker.newOutboundQueue();
+
+        InboundLink(Socket socket) {
+            this.socket = socket;
+            this.name = socket.getRemoteSocketAddress().toString();
+        }
+
+        void serve(){
+            // registered before the snapshot so no change is missed, a change also in the snapshot is sent twice
+            inboundLinks.add(this);
+            for (var topic : subscriptionIndex.interest()){
+                var frame = encode(INTEREST, INTERESTED, topic, NO_PAYLOAD);
+                if (frame != null){
+                    outbound.put(frame);
+                }
+            }
+            var writer = new Thread(() -> writeFrames(socket, outbound), String.format("federation-out-%s", name));
+            writer.setDaemon(true);
+            writer.start();
+            BrokerLog.log(BrokerLog.Level.INFO, "Peer connected from %s", name);
+            try {
+                readFrames(socket.getInputStream(), this::handle);
+            } catch (IOException e) {
+                if (!shutDown){
+                    BrokerLog.log(BrokerLog.Level.WARN, "Link from peer %s failed: %s", name, e.getMessage());
+                }
+            } finally {
+                close();
+                BrokerLog.log(BrokerLog.Level.INFO, "Peer disconnected from %s", name);
+            }
+        }
+
+        private void handle(byte type, byte flags, String topic, byte[] payload) throws ProtocolException {
+            if (type != FORWARD){
+                throw new ProtocolException(String.format("Unexpected frame type from peer: %d", type));
+            }
+            var message = new Message(topic, payload);
+            message.retained = (flags & RETAINED) != 0;
+            Broker.publishForwarded(name, message);
+        }
+
+        void close(){
+            inboundLinks.remove(this);
+            outbound.close();
+            closeQuietly(socket);
+        }
+    }
+
+    //Link we dial to a peer, redialed while the broker runs: our forwards go out on it and the peer's interest comes in
+    private static final class Peer {
+
+        private final InetSocketAddress address;
+        private final String name;
+        private final Set<String> topics = ConcurrentHashMap.newKeySet();
+        private final Set<String> patterns = ConcurrentHashMap.newKeySet();
+        private volatile OutboundQueue<ByteBuffer> outbound = null;
+        private volatile Socket socket = null;
+
+        Peer(InetSocketAddress address) {
+            this.address = address;
+            this.name = String.format("%s:%d", address.getHostString(), address.getPort());
+        }
+
+        boolean wants(String topic){
+            if (outbound == null){
+                return false;
+            }
+            if (topics.contains(topic)){
+                return true;
+            }
+            for (var pattern : patterns){
+                if (TopicTrie.matches(pattern, topic)){
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        void forward(ByteBuffer frame){
+            var queue = outbound;
+            if (queue != null && !queue.offer(frame)){
+                BrokerLog.log(BrokerLog.Level.WARN, "Peer %s overflowed its outbound queue", name);
+                disconnect();
+            }
+        }
+
+        void maintainLink(){
+            var announced = false;
+            while (!shutDown){
+                try (var link = new Socket()){
+                    Broker.configureSocket(link);
+                    // resolved on every attempt, the peer may have moved
+                    link.connect(new InetSocketAddress(address.getHostString(), address.getPort()));
+                    socket = link;
+                    var queue = Broker.<ByteBuffer>newOutboundQueue();
+                    var writer = new Thread(() -> writeFrames(link, queue), String.format("federation-out-%s", name));
+                    writer.setDaemon(true);
+                    writer.start();
+                    outbound = queue;
+                    announced = false;
+                    BrokerLog.log(BrokerLog.Level.INFO, "Connected to peer %s", name);
+                    readFrames(link.getInputStream(), this::handle);
+                    BrokerLog.log(BrokerLog.Level.INFO, "Disconnected from peer %s", name);
+                } catch (IOException e) {
+                    if (!announced && !shutDown){
+                        BrokerLog.log(BrokerLog.Level.WARN, "Peer %s is unreachable: %s, retrying", name, e.getMessage());
+                        announced = true;
+                    }
+                } finally {
+                    disconnect();
+                }
+                try {
+                    Thread.sleep(RECONNECT_MILLIS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+
+        private void handle(byte type, byte flags, String topic, byte[] payload) throws ProtocolException {
+            if (type != INTEREST){
+                throw new ProtocolException(String.format("Unexpected frame type from peer: %d", type));
+            }
+            var interest = TopicTrie.isPattern(topic) ? patterns : topics;
+            if ((flags & INTERESTED) != 0){
+                interest.add(topic);
+            }
+            else {
+                interest.remove(topic);
+            }
+        }
+
+        //The interest is resent whole on the next connection
+        void disconnect(){
+            var queue = outbound;
+            outbound = null;
+            if (queue != null){
+                queue.close();
+            }
+            topics.clear();
+            patterns.clear();
+            var link = socket;
+            if (link != null){
+                closeQuietly(link);
+            }
+        }
+    }
+}
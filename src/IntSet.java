@@ -0,0 +1,103 @@
+import java.util.Arrays;
+
+//Set of non-negative ints in a single open addressing array, without boxed entries or nodes.
+//Removal shifts the following entries back instead of leaving tombstones. Not thread-safe.
+final class IntSet {
+
+    static final int EMPTY = -1;
+    private static final int INITIAL_SLOTS = 8;
+
+    private int[] slots = emptySlots(INITIAL_SLOTS);
+    private int size = 0;
+
+    static int mix(int value){
+        var hash = value * 0x9E3779B9;
+        return hash ^ (hash >>> 16);
+    }
+
+    static int[] emptySlots(int length){
+        var slots = new int[length];
+        Arrays.fill(slots, EMPTY);
+        return slots;
+    }
+
+    int size(){
+        return size;
+    }
+
+    boolean contains(int value){
+        return slots[slotOf(value)] != EMPTY;
+    }
+
+    boolean add(int value){
+        var slot = slotOf(value);
+        if (slots[slot] != EMPTY){
+            return false;
+        }
+        slots[slot] = value;
+        if (++size * 2 > slots.length){
+            rehash(slots.length * 2);
+        }
+        return true;
+    }
+
+    boolean remove(int value){
+        var slot = slotOf(value);
+        if (slots[slot] == EMPTY){
+            return false;
+        }
+        removeSlot(slots, slot, IntSet::mix);
+        size--;
+        return true;
+    }
+
+    int[] toArray(){
+        var values = new int[size];
+        var count = 0;
+        for (var value : slots){
+            if (value != EMPTY){
+                values[count++] = value;
+            }
+        }
+        return values;
+    }
+
+    private int slotOf(int value){
+        var mask = slots.length - 1;
+        var slot = mix(value) & mask;
+        while (slots[slot] != EMPTY && slots[slot] != value){
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private void rehash(int length){
+        var previous = slots;
+        slots = emptySlots(length);
+        for (var value : previous){
+            if (value != EMPTY){
+                slots[slotOf(value)] = value;
+            }
+        }
+    }
+
+    interface Hash {
+        int of(int entry);
+    }
+
+    //Empties `slot` and moves back every later entry of the probe run whose home slot the hole now precedes
+    static void removeSlot(int[] slots, int slot, Hash hash){
+        var mask = slots.length - 1;
+        var hole = slot;
+        var next = (hole + 1) & mask;
+        while (slots[next] != EMPTY){
+            var home = hash.of(slots[next]) & mask;
+            if (((next - home) & mask) >= ((next - hole) & mask)){
+                slots[hole] = slots[next];
+                hole = next;
+            }
+            next = (next + 1) & mask;
+        }
+        slots[hole] = EMPTY;
+    }
+}
@@ -0,0 +1,93 @@
+import java.util.Arrays;
+
+//Assigns dense int ids to names. Ids are reference counted and reused once released, so whatever is
+//indexed by id stays as small as the number of names in use. The name -> id table is open addressing
+//over the ids themselves, with no boxed keys or entries. Meant for subscription changes, not for publishing.
+final class Interner {
+
+    private static final int INITIAL_IDS = 16;
+
+    private String[] names = new String[INITIAL_IDS];
+    private int[] references = new int[INITIAL_IDS];
+    private int[] slots = IntSet.emptySlots(INITIAL_IDS * 2);
+    private int[] freeIds = new int[INITIAL_IDS];
+    private int freeCount = 0;
+    private int nextId = 0;
+    private int size = 0;
+
+    //Returns the name's id, taking a reference to it
+    synchronized int acquire(String name){
+        var slot = slotOf(name);
+        if (slots[slot] != IntSet.EMPTY){
+            references[slots[slot]]++;
+            return slots[slot];
+        }
+        var id = freeCount > 0 ? freeIds[--freeCount] : nextId++;
+        if (id == names.length){
+            names = Arrays.copyOf(names, id * 2);
+            references = Arrays.copyOf(references, id * 2);
+        }
+        names[id] = name;
+        references[id] = 1;
+        slots[slot] = id;
+        if (++size * 2 > slots.length){
+            rehash(slots.length * 2);
+        }
+        return id;
+    }
+
+    //Returns the name's id without taking a reference, IntSet.EMPTY when the name has none
+    synchronized int find(String name){
+        return slots[slotOf(name)];
+    }
+
+    synchronized String name(int id){
+        return names[id];
+    }
+
+    //Drops a reference taken by acquire, the id is reused once the last one is gone
+    synchronized void release(int id){
+        if (--references[id] > 0){
+            return;
+        }
+        IntSet.removeSlot(slots, slotOf(names[id]), this::hash);
+        names[id] = null;
+        if (freeCount == freeIds.length){
+            freeIds = Arrays.copyOf(freeIds, freeCount * 2);
+        }
+        freeIds[freeCount++] = id;
+        size--;
+    }
+
+    synchronized int size(){
+        return size;
+    }
+
+    private int hash(int id){
+        return IntSet.mix(names[id].hashCode());
+    }
+
+    private int slotOf(String name){
+        var mask = slots.length - 1;
+        var slot = IntSet.mix(name.hashCode()) & mask;
+        while (slots[slot] != IntSet.EMPTY && !names[slots[slot]].equals(name)){
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private void rehash(int length){
+        var previous = slots;
+        slots = IntSet.emptySlots(length);
+        var mask = length - 1;
+        for (var id : previous){
+            if (id != IntSet.EMPTY){
+                var slot = hash(id) & mask;
+                while (slots[slot] != IntSet.EMPTY){
+                    slot = (slot + 1) & mask;
+                }
+                slots[slot] = id;
+            }
+        }
+    }
+}
@@ -0,0 +1,99 @@
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+//Log-linear histogram of nanosecond latencies in the spirit of HdrHistogram. Every power of two is split
+//into SUB_BUCKETS linear buckets, so a percentile is off by at most 1/SUB_BUCKETS of its value.
+//Counts are striped by recording thread, recording is a bucket index computation and one atomic increment.
+final class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    // values above 2^41 ns (about 36 minutes) land in the last bucket
+    private static final int MAX_EXPONENT = 40;
+    private static final int BUCKETS = (MAX_EXPONENT - SUB_BUCKET_BITS + 2) * SUB_BUCKETS;
+    private static final int STRIPES = 8;
+
+    private final AtomicLongArray counts = new AtomicLongArray(STRIPES * BUCKETS);
+    private final LongAdder total = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    void record(long nanos){
+        var value = Math.max(nanos, 0);
+        var stripe = (int) (Thread.currentThread().getId() & (STRIPES - 1));
+        counts.incrementAndGet(stripe * BUCKETS + bucket(value));
+        total.add(value);
+        max.accumulate(value);
+    }
+
+    private static int bucket(long value){
+        if (value < SUB_BUCKETS){
+            return (int) value;
+        }
+        var exponent = Math.min(63 - Long.numberOfLeadingZeros(value), MAX_EXPONENT);
+        var subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        if (exponent == MAX_EXPONENT && value >>> (MAX_EXPONENT + 1) != 0){
+            subBucket = SUB_BUCKETS - 1;
+        }
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    //Largest value that falls in the bucket
+    private static long upperBound(int bucket){
+        if (bucket < SUB_BUCKETS){
+            return bucket;
+        }
+        var exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        var subBucket = bucket % SUB_BUCKETS;
+        var width = 1L << (exponent - SUB_BUCKET_BITS);
+        return ((long) (SUB_BUCKETS + subBucket) << (exponent - SUB_BUCKET_BITS)) + width - 1;
+    }
+
+    //Merges the stripes into a consistent enough view, recordings racing with it may be partly included
+    Snapshot snapshot(){
+        var merged = new long[BUCKETS];
+        var count = 0L;
+        for (int stripe = 0; stripe < STRIPES; stripe++){
+            for (int i = 0; i < BUCKETS; i++){
+                var bucketCount = counts.get(stripe * BUCKETS + i);
+                merged[i] += bucketCount;
+                count += bucketCount;
+            }
+        }
+        return new Snapshot(merged, count, total.sum(), max.get());
+    }
+
+    static final class Snapshot {
+        final long count;
+        final long max;
+        private final long[] buckets;
+        private final long sum;
+
+        private Snapshot(long[] buckets, long count, long sum, long max) {
+            this.buckets = buckets;
+            this.count = count;
+            this.sum = sum;
+            this.max = max;
+        }
+
+        double mean(){
+            return count == 0 ? 0 : (double) sum / count;
+        }
+
+        //Upper bound of the bucket holding the given quantile, capped at the largest recorded value
+        long percentile(double quantile){
+            if (count == 0){
+                return 0;
+            }
+            var rank = (long) Math.ceil(quantile * count);
+            var seen = 0L;
+            for (int i = 0; i < buckets.length; i++){
+                seen += buckets[i];
+                if (seen >= Math.max(rank, 1)){
+                    return Math.min(upperBound(i), max);
+                }
+            }
+            return max;
+        }
+    }
+}
@@ -0,0 +1,81 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+//A published message. Each wire format is encoded at most once, on first use,
+//into a read-only frame shared by every recipient using that format.
+final class Message {
+
+    static final long NO_OFFSET = -1;
+
+    final String topic;
+    final byte[] payload;
+    //Position in the topic's log, set once the message is persisted
+    long offset = NO_OFFSET;
+    //Publishing the message also makes it its topic's retained message, here and on every peer
+    volatile boolean retained = false;
+    private volatile ByteBuffer textFrame;
+    private volatile ByteBuffer offsetTextFrame;
+    private volatile ByteBuffer binaryFrame;
+
+    Message(String topic, byte[] payload) {
+        this.topic = topic;
+        this.payload = payload;
+    }
+
+    //"TOPIC MESSAGE\n" for text protocol subscribers
+    ByteBuffer textFrame(){
+        var frame = textFrame;
+        if (frame == null){
+            var topicBytes = topic.getBytes(StandardCharsets.UTF_8);
+            var buffer = ByteBuffer.allocate(topicBytes.length + payload.length + 2);
+            buffer.put(topicBytes).put((byte) ' ').put(payload).put((byte) '\n').flip();
+            frame = buffer.asReadOnlyBuffer();
+            textFrame = frame;
+        }
+        return frame;
+    }
+
+    //"TOPIC OFFSET MESSAGE\n" for text connections asking for offsets, OFFSET is -1 when the message is not stored
+    ByteBuffer offsetTextFrame(){
+        var frame = offsetTextFrame;
+        if (frame == null){
+            var topicBytes = topic.getBytes(StandardCharsets.UTF_8);
+            var offsetBytes = Long.toString(offset).getBytes(StandardCharsets.US_ASCII);
+            var buffer = ByteBuffer.allocate(topicBytes.length + offsetBytes.length + payload.length + 3);
+            buffer.put(topicBytes).put((byte) ' ').put(offsetBytes).put((byte) ' ').put(payload).put((byte) '\n').flip();
+            frame = buffer.asReadOnlyBuffer();
+            offsetTextFrame = frame;
+        }
+        return frame;
+    }
+
+    //The text frame for a connection's modes, prefixed with "SUB_ID " for connections carrying several subscribers.
+    //The prefixed frame is built for each recipient.
+    ByteBuffer textFrame(String subscriberId, boolean multiplexed, boolean offsets){
+        var shared = offsets ? offsetTextFrame() : textFrame();
+        if (!multiplexed){
+            return shared;
+        }
+        var idBytes = subscriberId.getBytes(StandardCharsets.UTF_8);
+        var buffer = ByteBuffer.allocate(idBytes.length + 1 + shared.remaining());
+        buffer.put(idBytes).put((byte) ' ').put(shared.duplicate()).flip();
+        return buffer.asReadOnlyBuffer();
+    }
+
+    //MSG frame encoded with the topic id of the first session asking for it, other sessions check the id.
+    //A stored message is sent as OMSG, its payload preceded by its offset.
+    ByteBuffer binaryFrame(int topicId){
+        var frame = binaryFrame;
+        if (frame == null){
+            if (offset == NO_OFFSET){
+                frame = BinaryProtocol.encode(BinaryProtocol.MSG, 0, topicId, payload);
+            }
+            else {
+                var stored = ByteBuffer.allocate(Long.BYTES + payload.length).putLong(offset).put(payload).array();
+                frame = BinaryProtocol.encode(BinaryProtocol.OMSG, 0, topicId, stored);
+            }
+            binaryFrame = frame;
+        }
+        return frame;
+    }
+}
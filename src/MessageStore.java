@@ -0,0 +1,269 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+//Optional persistence of published messages, one TopicLog per topic under the store directory.
+//Appending only copies the record into a mapped segment. A single flusher thread forces the dirty logs,
+//so one fsync covers every message appended since the previous one (group commit), and enforces retention.
+final class MessageStore {
+
+    //every:N forces once N messages are waiting, or GROUP_COMMIT_LINGER after the first one, and holds
+    //the publishers' OKs until their messages are on disk. interval:MS forces every MS milliseconds and
+    //os leaves write-back to the OS, both acknowledge right away.
+    static final class FsyncPolicy {
+        final int everyMessages;
+        final long intervalMillis;
+
+        private FsyncPolicy(int everyMessages, long intervalMillis) {
+            this.everyMessages = everyMessages;
+            this.intervalMillis = intervalMillis;
+        }
+
+        static FsyncPolicy fromArg(String arg){
+            var split = arg.split(":", 2);
+            try {
+                if ("os".equals(arg)){
+                    return new FsyncPolicy(0, 0);
+                }
+                if (split.length == 2 && "every".equals(split[0]) && Integer.parseInt(split[1]) > 0){
+                    return new FsyncPolicy(Integer.parseInt(split[1]), 0);
+                }
+                if (split.length == 2 && "interval".equals(split[0]) && Long.parseLong(split[1]) > 0){
+                    return new FsyncPolicy(0, Long.parseLong(split[1]));
+                }
+            }
+            catch (NumberFormatException e){
+                // reported below
+            }
+            throw new IllegalArgumentException(String.format("Unknown fsync policy: '%s'", arg));
+        }
+
+        boolean syncsBeforeAck(){
+            return everyMessages > 0;
+        }
+
+        boolean leavesToOs(){
+            return everyMessages == 0 && intervalMillis == 0;
+        }
+    }
+
+    private static final String TOPIC_SUFFIX = ".topic";
+    private static final long GROUP_COMMIT_LINGER_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+    private static final long RETENTION_CHECK_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private final Path directory;
+    private final FsyncPolicy fsyncPolicy;
+    private final int segmentBytes;
+    private final long retentionBytes;
+    private final long retentionMillis;
+    private final ConcurrentHashMap<String, TopicLog> logs = new ConcurrentHashMap<>();
+    private final Set<TopicLog> dirtyLogs = ConcurrentHashMap.newKeySet();
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition syncDue = lock.newCondition();
+    private int unsyncedMessages = 0;
+    private long firstUnsyncedNanos = 0;
+    private List<Runnable> awaitingSync = new ArrayList<>();
+    private boolean closed = false;
+    private final Thread flusher;
+
+    private MessageStore(Path directory, FsyncPolicy fsyncPolicy, int segmentBytes, long retentionBytes,
+                         long retentionMillis) {
+        this.directory = directory;
+        this.fsyncPolicy = fsyncPolicy;
+        this.segmentBytes = segmentBytes;
+        this.retentionBytes = retentionBytes;
+        this.retentionMillis = retentionMillis;
+        this.flusher = new Thread(this::flushLoop, "store-flusher");
+    }
+
+    //Opens the store and recovers the logs of the topics found in the directory
+    static MessageStore open(Path directory, FsyncPolicy fsyncPolicy, int segmentBytes, long retentionBytes,
+                             long retentionMillis) throws IOException {
+        Files.createDirectories(directory);
+        var store = new MessageStore(directory, fsyncPolicy, segmentBytes, retentionBytes, retentionMillis);
+        try (var topics = Files.list(directory)){
+            for (var path : (Iterable<Path>) topics::iterator){
+                var name = path.getFileName().toString();
+                if (Files.isDirectory(path) && name.endsWith(TOPIC_SUFFIX)){
+                    var topic = URLDecoder.decode(name.substring(0, name.length() - TOPIC_SUFFIX.length()),
+                            StandardCharsets.UTF_8);
+                    store.logs.put(topic, TopicLog.open(path, segmentBytes));
+                }
+            }
+        }
+        store.flusher.setDaemon(true);
+        store.flusher.start();
+        return store;
+    }
+
+    //The topic's log, or null if nothing was ever stored for it
+    TopicLog log(String topic){
+        return logs.get(topic);
+    }
+
+    int topicCount(){
+        return logs.size();
+    }
+
+    //Returns the offset the message got in its topic's log
+    long append(Message message) throws IOException {
+        TopicLog log;
+        try {
+            log = logs.computeIfAbsent(message.topic, this::openLog);
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        var offset = log.append(message.payload, System.currentTimeMillis());
+        if (fsyncPolicy.leavesToOs()){
+            return offset;
+        }
+        dirtyLogs.add(log);
+        if (fsyncPolicy.syncsBeforeAck()){
+            lock.lock();
+            try {
+                if (unsyncedMessages++ == 0){
+                    firstUnsyncedNanos = System.nanoTime();
+                    syncDue.signal();
+                }
+                else if (unsyncedMessages == fsyncPolicy.everyMessages){
+                    syncDue.signal();
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+        return offset;
+    }
+
+    private TopicLog openLog(String topic){
+        var name = URLEncoder.encode(topic, StandardCharsets.UTF_8) + TOPIC_SUFFIX;
+        try {
+            return TopicLog.open(directory.resolve(name), segmentBytes);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    //Runs the acknowledgement once every message appended before it is on disk,
+    //or right away when the fsync policy does not hold acknowledgements
+    void afterSync(Runnable acknowledgement){
+        if (!fsyncPolicy.syncsBeforeAck()){
+            acknowledgement.run();
+            return;
+        }
+        lock.lock();
+        try {
+            awaitingSync.add(acknowledgement);
+            syncDue.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void flushLoop(){
+        var nextRetentionCheck = System.nanoTime() + RETENTION_CHECK_NANOS;
+        while (true){
+            List<Runnable> acknowledgements;
+            lock.lock();
+            try {
+                awaitSyncDue(nextRetentionCheck);
+                if (closed){
+                    return;
+                }
+                acknowledgements = awaitingSync;
+                awaitingSync = new ArrayList<>();
+                unsyncedMessages = 0;
+            } catch (InterruptedException e) {
+                return;
+            } finally {
+                lock.unlock();
+            }
+            if (!fsyncPolicy.leavesToOs()){
+                syncDirtyLogs();
+            }
+            acknowledgements.forEach(Runnable::run);
+            if (System.nanoTime() - nextRetentionCheck >= 0){
+                enforceRetention();
+                nextRetentionCheck = System.nanoTime() + RETENTION_CHECK_NANOS;
+            }
+        }
+    }
+
+    //Returns when a sync is due under the fsync policy or the next retention check is
+    private void awaitSyncDue(long nextRetentionCheck) throws InterruptedException {
+        while (!closed){
+            var now = System.nanoTime();
+            var untilRetention = nextRetentionCheck - now;
+            if (untilRetention <= 0){
+                return;
+            }
+            if (fsyncPolicy.intervalMillis > 0){
+                syncDue.awaitNanos(Math.min(untilRetention, TimeUnit.MILLISECONDS.toNanos(fsyncPolicy.intervalMillis)));
+                return;
+            }
+            if (!fsyncPolicy.syncsBeforeAck() || (unsyncedMessages == 0 && awaitingSync.isEmpty())){
+                syncDue.awaitNanos(untilRetention);
+                continue;
+            }
+            // acknowledgements with nothing left to sync only wait for the sync already under way
+            if (unsyncedMessages == 0 || unsyncedMessages >= fsyncPolicy.everyMessages){
+                return;
+            }
+            var untilLinger = firstUnsyncedNanos + GROUP_COMMIT_LINGER_NANOS - now;
+            if (untilLinger <= 0){
+                return;
+            }
+            syncDue.awaitNanos(Math.min(untilLinger, untilRetention));
+        }
+    }
+
+    private void syncDirtyLogs(){
+        for (var log : dirtyLogs){
+            dirtyLogs.remove(log);
+            log.force();
+        }
+    }
+
+    private void enforceRetention(){
+        if (retentionBytes == 0 && retentionMillis == 0){
+            return;
+        }
+        var now = System.currentTimeMillis();
+        for (var entry : logs.entrySet()){
+            try {
+                entry.getValue().enforceRetention(retentionBytes, retentionMillis, now);
+            } catch (IOException e) {
+                BrokerLog.log(BrokerLog.Level.ERROR, "Failed to enforce retention for topic %s: %s",
+                        entry.getKey(), e.getMessage());
+            }
+        }
+    }
+
+    //Stops the flusher and forces whatever is still dirty, acknowledgements still waiting are dropped
+    void close(){
+        lock.lock();
+        try {
+            closed = true;
+            syncDue.signal();
+        } finally {
+            lock.unlock();
+        }
+        try {
+            flusher.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        logs.values().forEach(TopicLog::force);
+    }
+}
@@ -0,0 +1,49 @@
+import java.util.concurrent.atomic.AtomicReference;
+
+//Unbounded lock-free multi-producer single-consumer queue (Vyukov's linked queue).
+//Producers swap themselves in as the tail with one atomic exchange and then link the previous tail to them,
+//the single consumer follows the links from a stub head without any atomic operation.
+//An item is invisible to the consumer for the instant between a producer's exchange and its link.
+final class MpscQueue<T> {
+
+    private static final class Node<T> {
+        T value;
+        volatile Node<T> next;
+
+        Node(T value) {
+            this.value = value;
+        }
+    }
+
+    private final AtomicReference<Node<T>> tail;
+    private Node<T> head;
+
+    MpscQueue() {
+        head = new Node<>(null);
+        tail = new AtomicReference<>(head);
+    }
+
+    //Any thread
+    void offer(T value){
+        var node = new Node<>(value);
+        tail.getAndSet(node).next = node;
+    }
+
+    //Consumer thread only, returns null when empty
+    T poll(){
+        var next = head.next;
+        if (next == null){
+            return null;
+        }
+        var value = next.value;
+        // the polled node becomes the new stub
+        next.value = null;
+        head = next;
+        return value;
+    }
+
+    //Consumer thread only
+    boolean isEmpty(){
+        return head.next == null;
+    }
+}
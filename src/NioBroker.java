@@ -0,0 +1,422 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channel;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+//Serves the subscribers' and publishers' ports from a fixed set of selector event loops
+//instead of a thread per connection. Speaks the same line protocol as the blocking broker.
+final class NioBroker {
+
+    private static final int READ_BUFFER_SIZE = 8 * 1024;
+
+    private static EventLoop[] loops = new EventLoop[0];
+    private static ServerSocketChannel subscribersChannel;
+    private static ServerSocketChannel publishersChannel;
+    private static volatile boolean shutDown = false;
+
+    private NioBroker() {
+    }
+
+    static void serve(int subPort, int pubPort, int loopCount) throws IOException, InterruptedException {
+        subscribersChannel = ServerSocketChannel.open();
+        Broker.configureServerSocket(subscribersChannel.socket());
+        subscribersChannel.bind(new InetSocketAddress(subPort));
+        publishersChannel = ServerSocketChannel.open();
+        Broker.configureServerSocket(publishersChannel.socket());
+        publishersChannel.bind(new InetSocketAddress(pubPort));
+
+        loops = new EventLoop[loopCount];
+        for (int i = 0; i < loopCount; i++){
+            loops[i] = new EventLoop(i);
+        }
+        // the first loop also accepts and hands new connections out round-robin
+        loops[0].registerAcceptor(subscribersChannel, false);
+        loops[0].registerAcceptor(publishersChannel, true);
+
+        var threads = new Thread[loopCount];
+        for (int i = 0; i < loopCount; i++){
+            threads[i] = new Thread(loops[i], String.format("broker-loop-%d", i));
+            threads[i].start();
+        }
+        System.out.printf("Broker is up with %d event loops!%n", loopCount);
+        for (var thread : threads){
+            thread.join();
+        }
+    }
+
+    static void shutdown() {
+        shutDown = true;
+        for (var loop : loops){
+            loop.selector.wakeup();
+        }
+        closeQuietly(subscribersChannel);
+        closeQuietly(publishersChannel);
+    }
+
+    private static void closeQuietly(Channel channel){
+        if (channel != null && channel.isOpen()){
+            try {
+                channel.close();
+            } catch (IOException e) {
+                System.err.println("Failed to close channel");
+            }
+        }
+    }
+
+    private static final class EventLoop implements Runnable {
+
+        private final Selector selector;
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        private int nextLoop;
+
+        EventLoop(int index) throws IOException {
+            this.selector = Selector.open();
+            this.nextLoop = index;
+        }
+
+        void registerAcceptor(ServerSocketChannel serverChannel, boolean publishers) throws IOException {
+            serverChannel.configureBlocking(false);
+            serverChannel.register(selector, SelectionKey.OP_ACCEPT, publishers);
+        }
+
+        void execute(Runnable task){
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            while (!shutDown){
+                try {
+                    selector.select();
+                    runTasks();
+                    var selectedKeys = selector.selectedKeys();
+                    for (var key : selectedKeys){
+                        handleKey(key);
+                    }
+                    selectedKeys.clear();
+                } catch (IOException e) {
+                    if (!shutDown){
+                        e.printStackTrace();
+                    }
+                }
+            }
+            for (var key : selector.keys()){
+                closeQuietly(key.channel());
+            }
+            try {
+                selector.close();
+            } catch (IOException e) {
+                System.err.println("Failed to close selector");
+            }
+        }
+
+        //The loop serves every connection registered with it, so a failing task is reported and the loop goes on
+        private void runTasks(){
+            var task = tasks.poll();
+            while (task != null){
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    e.printStackTrace();
+                }
+                task = tasks.poll();
+            }
+        }
+
+        private void handleKey(SelectionKey key){
+            if (!key.isValid()){
+                return;
+            }
+            if (key.isAcceptable()){
+                accept(key);
+                return;
+            }
+            var connection = (ChannelConnection) key.attachment();
+            try {
+                if (key.isReadable()){
+                    connection.readCommands();
+                }
+                if (key.isValid() && key.isWritable()){
+                    connection.flush();
+                }
+            } catch (ProtocolException e) {
+                System.err.println(String.format("Closing connection: %s", e.getMessage()));
+                connection.close();
+                Broker.connectionClosed(connection);
+            } catch (IOException e) {
+                connection.close();
+                Broker.connectionClosed(connection);
+            } catch (RuntimeException e) {
+                // only this connection is lost, not every other one on the loop
+                System.err.println(String.format("Closing connection: %s", e));
+                connection.close();
+                Broker.connectionClosed(connection);
+            }
+        }
+
+        private void accept(SelectionKey key){
+            var publishers = (Boolean) key.attachment();
+            try {
+                var channel = ((ServerSocketChannel) key.channel()).accept();
+                if (channel == null){
+                    return;
+                }
+                channel.configureBlocking(false);
+                Broker.configureSocket(channel.socket());
+                var loop = loops[nextLoop++ % loops.length];
+                loop.execute(() -> loop.register(channel, publishers));
+            } catch (IOException e) {
+                if (!shutDown){
+                    e.printStackTrace();
+                }
+            }
+        }
+
+        private void register(SocketChannel channel, boolean publishers){
+            try {
+                var connection = new ChannelConnection(this, channel, publishers);
+                connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+            } catch (ClosedChannelException e) {
+                closeQuietly(channel);
+            }
+        }
+    }
+
+    //Non-blocking connection owned by a single event loop; other threads only queue outbound frames
+    private static final class ChannelConnection implements Connection {
+
+        private final EventLoop loop;
+        private final SocketChannel channel;
+        private final boolean publisher;
+        private final OutboundQueue<ByteBuffer> outbound = Broker.newOutboundQueue();
+        private final ArrayList<ByteBuffer> drained = new ArrayList<>();
+        private final ArrayDeque<ByteBuffer> writing = new ArrayDeque<>();
+        private final AtomicBoolean writeScheduled = new AtomicBoolean(false);
+        private final ByteBuffer[] gather = new ByteBuffer[Broker.writeBatchSize()];
+        private ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        private SelectionKey key;
+        private boolean negotiated = false;
+        private final PublisherCommands commands;
+        private volatile BinaryProtocol.Session session = null;
+        private volatile boolean multiplexed = false;
+        private volatile boolean offsets = false;
+
+        ChannelConnection(EventLoop loop, SocketChannel channel, boolean publisher) {
+            this.loop = loop;
+            this.channel = channel;
+            this.publisher = publisher;
+            this.commands = publisher ? new PublisherCommands(this) : null;
+            BrokerMetrics.connectionOpened();
+        }
+
+        @Override
+        public void send(ByteBuffer reply) {
+            if (!channel.isOpen()){
+                return;
+            }
+            outbound.put(reply);
+            scheduleWrite();
+        }
+
+        @Override
+        public boolean deliver(String subscriberId, Message message) {
+            if (!channel.isOpen()){
+                return true;
+            }
+            var accepted = offer(subscriberId, message);
+            BrokerMetrics.delivered(message);
+            scheduleWrite();
+            return accepted;
+        }
+
+        private boolean offer(String subscriberId, Message message){
+            var binarySession = session;
+            if (binarySession == null){
+                return outbound.offer(message.textFrame(subscriberId, multiplexed, offsets));
+            }
+            synchronized (binarySession){
+                var topicDefinition = binarySession.announce(message.topic);
+                if (topicDefinition != null){
+                    outbound.put(topicDefinition);
+                }
+                return outbound.offer(binarySession.messageFrame(subscriberId, message));
+            }
+        }
+
+        @Override
+        public void multiplex() {
+            multiplexed = true;
+        }
+
+        @Override
+        public void includeOffsets() {
+            offsets = true;
+        }
+
+        @Override
+        public boolean awaitCapacity() throws InterruptedException {
+            return outbound.awaitCapacity();
+        }
+
+        @Override
+        public long droppedMessages() {
+            return outbound.dropped();
+        }
+
+        @Override
+        public long deliveredMessages() {
+            return outbound.delivered();
+        }
+
+        @Override
+        public int backlog() {
+            return outbound.size();
+        }
+
+        private void scheduleWrite(){
+            if (writeScheduled.compareAndSet(false, true)){
+                loop.execute(this::enableWrites);
+            }
+        }
+
+        private void enableWrites(){
+            if (key != null && key.isValid()){
+                key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+            }
+        }
+
+        void flush() throws IOException {
+            while (true){
+                // coalesce up to a batch of queued frames into one gathering write
+                outbound.drainTo(drained, gather.length - writing.size());
+                for (var frame : drained){
+                    // frames are shared between connections, each one writes through its own view
+                    writing.add(frame.duplicate());
+                }
+                drained.clear();
+                if (writing.isEmpty()){
+                    break;
+                }
+                var count = 0;
+                for (var buffer : writing){
+                    gather[count++] = buffer;
+                }
+                BrokerMetrics.bytesWritten(channel.write(gather, 0, count));
+                Arrays.fill(gather, 0, count, null);
+                while (!writing.isEmpty() && !writing.peekFirst().hasRemaining()){
+                    writing.pollFirst();
+                }
+                if (!writing.isEmpty()){
+                    return; // socket buffer is full, wait for the next OP_WRITE
+                }
+            }
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+            writeScheduled.set(false);
+            if (!outbound.isEmpty()){
+                scheduleWrite();
+            }
+        }
+
+        void readCommands() throws IOException {
+            var read = channel.read(readBuffer);
+            if (read < 0){
+                close();
+                Broker.connectionClosed(this);
+                return;
+            }
+            BrokerMetrics.bytesRead(read);
+            readBuffer.flip();
+            if (!negotiated && !negotiate()){
+                readBuffer.compact();
+                return;
+            }
+            var needed = session != null ? BinaryProtocol.decodeFrames(readBuffer, session) : readLines();
+            if (!channel.isOpen()){
+                return;
+            }
+            readBuffer.compact();
+            if (readBuffer.capacity() < needed || !readBuffer.hasRemaining()){
+                // a single command larger than the buffer, grow it
+                var larger = ByteBuffer.allocate(Math.max(needed, readBuffer.capacity() * 2));
+                readBuffer.flip();
+                larger.put(readBuffer);
+                readBuffer = larger;
+            }
+        }
+
+        //Binary clients open with BinaryProtocol.MAGIC, a text command never starts with a NUL byte
+        private boolean negotiate(){
+            var magic = BinaryProtocol.MAGIC;
+            if (!readBuffer.hasRemaining()){
+                return false;
+            }
+            if (readBuffer.get(0) == magic[0]){
+                if (readBuffer.remaining() < magic.length){
+                    return false;
+                }
+                var prefix = new byte[magic.length];
+                readBuffer.get(prefix);
+                if (BinaryProtocol.startsWithMagic(prefix, prefix.length)){
+                    session = new BinaryProtocol.Session(this, publisher);
+                }
+                else {
+                    readBuffer.position(0);
+                }
+            }
+            negotiated = true;
+            return true;
+        }
+
+        private int readLines(){
+            if (publisher){
+                // parsed in place, a batch's entries may follow in later reads
+                readBuffer.position(commands.lines(readBuffer.array(), readBuffer.position(), readBuffer.limit()));
+                return 0;
+            }
+            var lineStart = readBuffer.position();
+            for (int i = readBuffer.position(); i < readBuffer.limit(); i++){
+                if (readBuffer.get(i) == '\n'){
+                    var lineEnd = i > lineStart && readBuffer.get(i - 1) == '\r' ? i - 1 : i;
+                    var line = new String(readBuffer.array(), lineStart, lineEnd - lineStart, StandardCharsets.UTF_8);
+                    lineStart = i + 1;
+                    Broker.handleSubCommand(line, this);
+                    if (!channel.isOpen()){
+                        break;
+                    }
+                }
+            }
+            readBuffer.position(lineStart);
+            return 0;
+        }
+
+        @Override
+        public void close() {
+            if (key != null){
+                key.cancel();
+            }
+            closeQuietly(channel);
+            if (outbound.close()){
+                BrokerMetrics.connectionClosed();
+                var binarySession = session;
+                if (binarySession != null){
+                    binarySession.close();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,261 @@
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Locale;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+//Bounded queue of frames waiting to be written to a single client.
+//Any thread may produce, a single writer (thread or event loop) drains it.
+//The enqueue time of every item is kept in a ring alongside, to record how long items wait for the writer.
+//A second ring marks which items are message deliveries, the only ones an overflow policy may drop.
+final class OutboundQueue<T> {
+
+    enum OverflowPolicy {
+        BLOCK, DROP_OLDEST, DROP_NEWEST, DISCONNECT;
+
+        static OverflowPolicy fromArg(String arg){
+            return valueOf(arg.toUpperCase(Locale.ROOT).replace('-', '_'));
+        }
+    }
+
+    private final ArrayDeque<T> items = new ArrayDeque<>();
+    private long[] enqueuedAt = new long[16];
+    private boolean[] droppable = new boolean[16];
+    private int oldestEnqueued = 0;
+    private final int capacity;
+    private final OverflowPolicy policy;
+    private final LatencyHistogram waitTimes;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition notFull = lock.newCondition();
+    private volatile long dropped = 0;
+    private volatile long delivered = 0;
+    private boolean closed = false;
+
+    OutboundQueue(int capacity, OverflowPolicy policy, LatencyHistogram waitTimes) {
+        this.capacity = capacity;
+        this.policy = policy;
+        this.waitTimes = waitTimes;
+    }
+
+    private void enqueue(T item, boolean message){
+        if (items.size() == enqueuedAt.length){
+            // replies are never refused, so the queue can outgrow its capacity
+            var grown = new long[enqueuedAt.length * 2];
+            var grownDroppable = new boolean[grown.length];
+            for (int i = 0; i < items.size(); i++){
+                grown[i] = enqueuedAt[(oldestEnqueued + i) % enqueuedAt.length];
+                grownDroppable[i] = droppable[(oldestEnqueued + i) % enqueuedAt.length];
+            }
+            enqueuedAt = grown;
+            droppable = grownDroppable;
+            oldestEnqueued = 0;
+        }
+        var slot = (oldestEnqueued + items.size()) % enqueuedAt.length;
+        enqueuedAt[slot] = System.nanoTime();
+        droppable[slot] = message;
+        items.addLast(item);
+    }
+
+    private T dequeue(long now){
+        var item = items.pollFirst();
+        if (item != null){
+            if (now != 0){
+                waitTimes.record(now - enqueuedAt[oldestEnqueued]);
+            }
+            oldestEnqueued = (oldestEnqueued + 1) % enqueuedAt.length;
+        }
+        return item;
+    }
+
+    //Removes the oldest message delivery, skipping replies queued ahead of it.
+    //Returns false when the queue holds nothing but replies.
+    private boolean evictOldestMessage(){
+        var iterator = items.iterator();
+        for (int i = 0; iterator.hasNext(); i++){
+            iterator.next();
+            if (droppable[(oldestEnqueued + i) % enqueuedAt.length]){
+                iterator.remove();
+                // shift the older entries of both rings into the freed slot
+                for (int j = i; j > 0; j--){
+                    var to = (oldestEnqueued + j) % enqueuedAt.length;
+                    var from = (oldestEnqueued + j - 1) % enqueuedAt.length;
+                    enqueuedAt[to] = enqueuedAt[from];
+                    droppable[to] = droppable[from];
+                }
+                oldestEnqueued = (oldestEnqueued + 1) % enqueuedAt.length;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    //Queues a reply to the client's own command or a topic announcement, these are never dropped
+    void put(T item){
+        lock.lock();
+        try {
+            if (!closed){
+                enqueue(item, false);
+                notEmpty.signal();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    //Queues a message delivery applying the overflow policy.
+    //Returns false when the policy asks for the client to be disconnected.
+    boolean offer(T item){
+        lock.lock();
+        try {
+            if (closed){
+                return true;
+            }
+            if (items.size() >= capacity){
+                switch (policy){
+                    case BLOCK:
+                        if (!awaitSpace()){
+                            dropped++;
+                            return true;
+                        }
+                        break;
+                    case DROP_OLDEST:
+                        dropped++;
+                        if (!evictOldestMessage()){
+                            return true;
+                        }
+                        break;
+                    case DROP_NEWEST:
+                        dropped++;
+                        return true;
+                    default:
+                        dropped++;
+                        return false;
+                }
+            }
+            enqueue(item, true);
+            delivered++;
+            notEmpty.signal();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private boolean awaitSpace(){
+        try {
+            while (items.size() >= capacity && !closed){
+                notFull.await();
+            }
+            return !closed;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    //Blocks until the queue is below capacity, returns false once it is closed.
+    //Lets a producer that can afford to wait pace itself instead of triggering the overflow policy.
+    boolean awaitCapacity() throws InterruptedException {
+        lock.lock();
+        try {
+            while (items.size() >= capacity && !closed){
+                notFull.await();
+            }
+            return !closed;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    //Blocks until an item is available, returns null once the queue is closed
+    T take() throws InterruptedException {
+        lock.lock();
+        try {
+            while (items.isEmpty() && !closed){
+                notEmpty.await();
+            }
+            var item = dequeue(System.nanoTime());
+            notFull.signal();
+            return item;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    T poll(){
+        lock.lock();
+        try {
+            var item = dequeue(System.nanoTime());
+            if (item != null){
+                notFull.signal();
+            }
+            return item;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    int drainTo(Collection<? super T> target, int maxItems){
+        lock.lock();
+        try {
+            var count = 0;
+            var now = System.nanoTime();
+            while (count < maxItems && !items.isEmpty()){
+                target.add(dequeue(now));
+                count++;
+            }
+            if (count > 0){
+                notFull.signalAll();
+            }
+            return count;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    boolean isEmpty(){
+        lock.lock();
+        try {
+            return items.isEmpty();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    int size(){
+        lock.lock();
+        try {
+            return items.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    long dropped(){
+        return dropped;
+    }
+
+    //Messages accepted by offer, including those a DROP_OLDEST policy evicted later
+    long delivered(){
+        return delivered;
+    }
+
+    //Returns false if the queue was already closed
+    boolean close(){
+        lock.lock();
+        try {
+            if (closed){
+                return false;
+            }
+            closed = true;
+            items.clear();
+            oldestEnqueued = 0;
+            notEmpty.signalAll();
+            notFull.signalAll();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
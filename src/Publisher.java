@@ -1,30 +1,409 @@
 import java.io.*;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
 import java.net.InetAddress;
+import java.net.ProtocolException;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Scanner;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 
-//publisher -i ID -r pub_port -h broker_IP -p broker_port [-f command_file]
+//publisher -i ID[,ID...] [-r pub_port] -h broker_IP -p broker_port [-f command_file] [-proto text|binary]
+//          [-window max_in_flight] [-batch-size max_entries] [-linger-ms max_wait] [-replay delay|timestamp]
+//          [-speed multiplier|max] [-shm directory]
+//With -shm the publisher talks to a broker on the same host through shared memory, always in the binary protocol.
+//Several ids share the one connection, command file lines are sent as the first id.
 public class Publisher {
 
     private static String id;
-    private static int port;
+    private static List<String> ids;
+    private static int port = 0;
     private static String brokerIp;
     private static int brokerPort;
     private static String commandFile;
     private static Socket brokerSocket;
+    private static Path sharedMemoryDirectory;
+    private static SharedMemoryChannel sharedMemory;
     private static boolean shutDown = false;
+    private static boolean binaryProtocol = false;
+    private static PrintWriter socketOutStream;
+    private static BufferedReader socketInStream;
+    private static DataOutputStream binaryOutStream;
+    private static DataInputStream binaryInStream;
+    private static int window = 0;
+    private static Semaphore inFlight;
+    private static long nextSequence = 0;
+    private static final Map<Long, CompletableFuture<Void>> pendingAcks = new ConcurrentHashMap<>();
+    // set once the acknowledgements stop, publishes then fail instead of waiting for the window
+    private static volatile IOException disconnected = null;
+    private static int batchSize = 0;
+    private static long lingerMillis = 5;
+    private static List<String[]> batchEntries = new ArrayList<>();
+    private static String batchId;
+    private static List<CompletableFuture<Void>> batchAcknowledgements = new ArrayList<>();
+    private static ScheduledExecutorService lingerTimer;
+    private static boolean replay = false;
+    private static boolean replayTimestamps = false;
+    // 0 replays as fast as possible
+    private static double replaySpeed = 1;
+    private static final long SPIN_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+    private static final long REPORT_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    // binary framing, mirrors the broker's BinaryProtocol
+    private static final byte[] MAGIC = {0, 'P', 'S', 'B'};
+    private static final byte REGISTER = 1;
+    private static final byte TOPIC = 2;
+    private static final byte PUB = 3;
+    private static final byte EXIT = 6;
+    private static final byte OK = 7;
+    private static final byte APUB = 9;
+    private static final byte BATCH = 10;
+    private static final byte RETAIN = 13;
+    private static final byte ARETAIN = 14;
+    private static final byte ERROR = 15;
+    private static final Map<String, Integer> topicAliases = new HashMap<>();
 
     private static void sendExitCommand(){
-        if (brokerSocket == null || brokerSocket.isClosed()){
+        if (sharedMemory == null && (brokerSocket == null || brokerSocket.isClosed())){
             return;
         }
         try {
-            var socketOutStream = new PrintWriter(brokerSocket.getOutputStream(), true);
-            socketOutStream.println(String.format("%s exit", id));
+            flushCommands();
+            for (var clientId : ids){
+                writeCommand(String.format("%s exit", clientId));
+            }
+            flushStreams();
         } catch (IOException e) {
             e.printStackTrace();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void openStreams() throws IOException {
+        if (!binaryProtocol){
+            // pipelined publishing flushes explicitly, so several commands share one write
+            socketOutStream = new PrintWriter(new BufferedWriter(new OutputStreamWriter(brokerSocket.getOutputStream())),
+                    window == 0);
+            socketInStream = new BufferedReader(new InputStreamReader(brokerSocket.getInputStream()));
+            return;
+        }
+        var output = sharedMemory != null ? sharedMemory.output() : brokerSocket.getOutputStream();
+        var input = sharedMemory != null ? sharedMemory.input() : brokerSocket.getInputStream();
+        binaryOutStream = new DataOutputStream(new BufferedOutputStream(output));
+        binaryInStream = new DataInputStream(new BufferedInputStream(input));
+        binaryOutStream.write(MAGIC);
+        for (int alias = 0; alias < ids.size(); alias++){
+            writeFrame(REGISTER, alias, 0, ids.get(alias).getBytes(StandardCharsets.UTF_8));
+        }
+        binaryOutStream.flush();
+    }
+
+    //Sends a command line, translated into frames when the binary protocol is used
+    private static synchronized void writeCommand(String command) throws IOException {
+        if (!binaryProtocol){
+            socketOutStream.println(command);
+            return;
+        }
+        var split = command.split(" ", 4);
+        var clientAlias = clientAlias(split[0]);
+        if ("exit".equals(split[1])){
+            writeFrame(EXIT, clientAlias, 0, new byte[0]);
+        }
+        else if (split[1].contains("@")){
+            var verb = split[1].split("@", 2);
+            var message = split[3].getBytes(StandardCharsets.UTF_8);
+            var payload = ByteBuffer.allocate(Long.BYTES + message.length)
+                    .putLong(Long.parseLong(verb[1]))
+                    .put(message);
+            writeFrame("retain".equals(verb[0]) ? ARETAIN : APUB, clientAlias, topicAlias(split[2]), payload.array());
+        }
+        else {
+            writeFrame("retain".equals(split[1]) ? RETAIN : PUB, clientAlias, topicAlias(split[2]),
+                    split[3].getBytes(StandardCharsets.UTF_8));
+        }
+        if (window == 0){
+            binaryOutStream.flush();
+        }
+    }
+
+    //Sends the publishes still lingering in the current batch and flushes the stream
+    private static synchronized void flushCommands() throws IOException, InterruptedException {
+        if (!batchEntries.isEmpty()){
+            sendBatch();
+        }
+        flushStreams();
+    }
+
+    private static synchronized void flushStreams() throws IOException {
+        if (binaryProtocol){
+            binaryOutStream.flush();
+        }
+        else {
+            socketOutStream.flush();
+        }
+    }
+
+    private static int topicAlias(String topic) throws IOException {
+        var alias = topicAliases.get(topic);
+        if (alias == null){
+            alias = topicAliases.size();
+            topicAliases.put(topic, alias);
+            writeFrame(TOPIC, 0, alias, topic.getBytes(StandardCharsets.UTF_8));
+        }
+        return alias;
+    }
+
+    //Each id is registered under its position in -i
+    private static int clientAlias(String clientId){
+        return Math.max(ids.indexOf(clientId), 0);
+    }
+
+    private static void writeFrame(byte opcode, int clientAlias, int topicAlias, byte[] payload) throws IOException {
+        binaryOutStream.writeByte(opcode);
+        binaryOutStream.writeInt(clientAlias);
+        binaryOutStream.writeInt(topicAlias);
+        binaryOutStream.writeInt(payload.length);
+        binaryOutStream.write(payload);
+    }
+
+    //Reads the broker's next reply, binary frames are translated back into reply lines
+    private static String readResponse() throws IOException {
+        if (!binaryProtocol){
+            return socketInStream.readLine();
+        }
+        byte opcode;
+        try {
+            opcode = binaryInStream.readByte();
+        } catch (EOFException e) {
+            return null;
+        }
+        binaryInStream.readInt();
+        binaryInStream.readInt();
+        var payload = new byte[binaryInStream.readInt()];
+        binaryInStream.readFully(payload);
+        if (opcode != OK && opcode != ERROR){
+            throw new ProtocolException(String.format("Unexpected opcode: %d", opcode));
+        }
+        // acknowledgements of pipelined publishes echo the sequence number, and so do errors
+        var reply = opcode == OK ? "OK" : "ERR";
+        return payload.length == Long.BYTES ? String.format("%s %d", reply, ByteBuffer.wrap(payload).getLong()) : reply;
+    }
+
+    //Reads the acknowledgements of pipelined publishes and completes them by sequence number.
+    //'ERR SEQ' fails the publish, the broker could not store it although it promises durability.
+    private static Runnable readAcksRunnable(){
+        return () -> {
+            try {
+                var response = readResponse();
+                while (response != null){
+                    var split = response.split(" ", 2);
+                    var rejected = "ERR".equals(split[0]);
+                    CompletableFuture<Void> acknowledged = null;
+                    if (split.length == 2 && ("OK".equals(split[0]) || rejected) && split[1].matches("\\d+")){
+                        acknowledged = pendingAcks.remove(Long.parseLong(split[1]));
+                    }
+                    if (acknowledged == null){
+                        System.err.println(String.format("Got unexpected response '%s'", response));
+                    }
+                    else if (rejected){
+                        inFlight.release();
+                        acknowledged.completeExceptionally(new IOException("Broker failed to store the message"));
+                    }
+                    else {
+                        inFlight.release();
+                        acknowledged.complete(null);
+                    }
+                    response = readResponse();
+                }
+            } catch (IOException e) {
+                if (!shutDown){
+                    e.printStackTrace();
+                }
+            }
+            disconnected = new IOException("Couldn't connect to broker");
+            failPendingAcks();
+        };
+    }
+
+    //Fails every unacknowledged publish and gives its slot back, so nothing waits on the window for good
+    private static void failPendingAcks(){
+        for (var sequence : pendingAcks.keySet()){
+            var acknowledged = pendingAcks.remove(sequence);
+            if (acknowledged != null){
+                inFlight.release();
+                acknowledged.completeExceptionally(disconnected);
+            }
+        }
+    }
+
+    //A publish sent after the acknowledgements stopped is failed at once
+    private static void awaitAck(long sequence, CompletableFuture<Void> acknowledged){
+        pendingAcks.put(sequence, acknowledged);
+        if (disconnected != null){
+            failPendingAcks();
+        }
+    }
+
+    //Sends a publish without waiting for its OK, blocking only while `window` publishes are unacknowledged.
+    //The returned future completes when the broker acknowledges this publish.
+    public static synchronized CompletableFuture<Void> publishAsync(String command) throws IOException, InterruptedException {
+        var split = command.split(" ", 4);
+        if (batchSize > 0 && "pub".equals(split[1])){
+            // a batch is published under a single id
+            if (!batchEntries.isEmpty() && !batchId.equals(split[0])){
+                sendBatch();
+            }
+            batchId = split[0];
+            return addToBatch(split[2], split[3]);
+        }
+        // batches carry no retain flag, so a retained publish goes on its own after the current batch
+        if (!batchEntries.isEmpty()){
+            sendBatch();
+        }
+        acquireInFlight();
+        var sequence = nextSequence++;
+        var acknowledged = new CompletableFuture<Void>();
+        awaitAck(sequence, acknowledged);
+        writeCommand(String.format("%s %s@%d %s %s", split[0], split[1], sequence, split[2], split[3]));
+        return acknowledged;
+    }
+
+    private static void acquireInFlight() throws IOException, InterruptedException {
+        if (!inFlight.tryAcquire()){
+            flushStreams();
+            inFlight.acquire();
+        }
+        if (disconnected != null){
+            inFlight.release();
+            throw disconnected;
+        }
+    }
+
+    //Publishes join the current batch, which is sent once it holds `batchSize` entries or has lingered `lingerMillis`.
+    //The futures of a batch's publishes are completed in order by the batch's single acknowledgement.
+    private static CompletableFuture<Void> addToBatch(String topic, String message) throws IOException, InterruptedException {
+        if (batchEntries.isEmpty()){
+            var lingering = batchEntries;
+            lingerTimer.schedule(() -> sendLingeringBatch(lingering), lingerMillis, TimeUnit.MILLISECONDS);
+        }
+        batchEntries.add(new String[]{topic, message});
+        var acknowledged = new CompletableFuture<Void>();
+        batchAcknowledgements.add(acknowledged);
+        if (batchEntries.size() >= batchSize){
+            sendBatch();
+        }
+        return acknowledged;
+    }
+
+    private static synchronized void sendLingeringBatch(List<String[]> lingering){
+        // the batch may have filled up and been sent before its linger time passed
+        if (lingering != batchEntries){
+            return;
+        }
+        try {
+            flushCommands();
+        } catch (IOException e) {
+            if (!shutDown){
+                e.printStackTrace();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    //A batch takes a single slot of the in-flight window and a single sequence number
+    private static void sendBatch() throws IOException, InterruptedException {
+        var publishes = batchAcknowledgements;
+        try {
+            acquireInFlight();
+        } catch (IOException e) {
+            publishes.forEach(publish -> publish.completeExceptionally(e));
+            batchEntries = new ArrayList<>();
+            batchAcknowledgements = new ArrayList<>();
+            throw e;
+        }
+        var sequence = nextSequence++;
+        var acknowledged = new CompletableFuture<Void>();
+        acknowledged.whenComplete((ignored, error) -> publishes.forEach(publish -> {
+            if (error == null){
+                publish.complete(null);
+            }
+            else {
+                publish.completeExceptionally(error);
+            }
+        }));
+        awaitAck(sequence, acknowledged);
+        writeBatch(batchId, sequence, batchEntries);
+        batchEntries = new ArrayList<>();
+        batchAcknowledgements = new ArrayList<>();
+    }
+
+    private static void writeBatch(String pubId, long sequence, List<String[]> entries) throws IOException {
+        if (!binaryProtocol){
+            socketOutStream.println(String.format("%s bpub@%d %d", pubId, sequence, entries.size()));
+            for (var entry : entries){
+                socketOutStream.println(String.format("%s %s", entry[0], entry[1]));
+            }
+            return;
+        }
+        // topic aliases are defined before the frame that uses them
+        var aliases = new int[entries.size()];
+        var messages = new byte[entries.size()][];
+        var length = Long.BYTES + Integer.BYTES;
+        for (int i = 0; i < entries.size(); i++){
+            aliases[i] = topicAlias(entries.get(i)[0]);
+            messages[i] = entries.get(i)[1].getBytes(StandardCharsets.UTF_8);
+            length += 2 * Integer.BYTES + messages[i].length;
+        }
+        var payload = ByteBuffer.allocate(length).putLong(sequence).putInt(entries.size());
+        for (int i = 0; i < entries.size(); i++){
+            payload.putInt(aliases[i]).putInt(messages[i].length).put(messages[i]);
+        }
+        writeFrame(BATCH, clientAlias(pubId), 0, payload.array());
+    }
+
+    private static void sendCommand(String command){
+        if (window == 0){
+            sendCommandAndWaitForOK(command);
+            return;
+        }
+        try {
+            var split = command.split(" ", 4);
+            publishAsync(command).whenComplete((ignored, error) -> {
+                if (error == null){
+                    System.out.println(String.format("Published message for topic %s: %s", split[2], split[3]));
+                }
+                else if (!shutDown){
+                    System.err.println(String.format("Failed to publish '%s': %s", command, error.getMessage()));
+                }
+            });
+        } catch (IOException e) {
+            if (!shutDown){
+                e.printStackTrace();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
     }
 
@@ -39,6 +418,9 @@ public class Publisher {
                     System.err.println("Failed to close broker socket");
                 }
             }
+            if (sharedMemory != null){
+                sharedMemory.close();
+            }
             System.out.println("Closed broker socket");
         };
     }
@@ -50,19 +432,46 @@ public class Publisher {
         Runtime.getRuntime().addShutdownHook(new Thread(gracefulShutdownRunnable()));
 
 
-        List<String> commands = commandFile == null ? List.of()
+        // a replayed file is streamed once connected, never loaded
+        List<String> commands = commandFile == null || replay ? List.of()
                 : readCommandsFromFile(commandFile);
         try (var cmdScanner = new Scanner(System.in)){
-            System.out.printf("Publisher with id: '%s' is up!%n", id);
-            brokerSocket = new Socket(brokerIp, brokerPort, InetAddress.getLocalHost(), port);
-            sendCommandsFromFileToBroker(commands);
+            System.out.printf("Publisher with id: '%s' is up!%n", String.join(",", ids));
+            if (sharedMemoryDirectory != null){
+                sharedMemory = new SharedMemoryChannel(sharedMemoryDirectory, true);
+            }
+            else {
+                brokerSocket = new Socket(brokerIp, brokerPort, InetAddress.getLocalHost(), port);
+            }
+            openStreams();
+            if (window > 0){
+                inFlight = new Semaphore(window);
+                var readAcksThread = new Thread(readAcksRunnable());
+                readAcksThread.setDaemon(true);
+                readAcksThread.start();
+            }
+            if (batchSize > 0){
+                lingerTimer = new ScheduledThreadPoolExecutor(1, runnable -> {
+                    var lingerThread = new Thread(runnable);
+                    lingerThread.setDaemon(true);
+                    return lingerThread;
+                });
+            }
+            if (replay){
+                replayCommandFile();
+            }
+            else {
+                sendCommandsFromFileToBroker(commands);
+            }
+            flushCommands();
 
 
             System.out.println("\nPlease enter a command in the following format: <PUB_ID COMMAND TOPIC MESSAGE>");
             var userInput = cmdScanner.nextLine();
             while (userInput != null){
                 if (commandIsValid(userInput)){
-                    sendCommandAndWaitForOK(userInput);
+                    sendCommand(userInput);
+                    flushCommands();
                 }
                 System.out.println("\nPlease enter a command in the following format: <PUB_ID COMMAND TOPIC MESSAGE>");
                 userInput = cmdScanner.nextLine();
@@ -71,6 +480,8 @@ public class Publisher {
             if (!shutDown){
                 e.printStackTrace();
             }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
     }
 
@@ -83,12 +494,18 @@ public class Publisher {
             System.err.println("Invalid command format");
             isValid = false;
         }
-        if (!id.equals(split[0])) {
+        if (!ids.contains(split[0])) {
             System.err.printf("Invalid id: '%s'%n", split[0]);
             isValid = false;
         }
-        if (!"pub".equals(split[1])) {
+        // 'retain' publishes and also makes the message the topic's retained one
+        if (!"pub".equals(split[1]) && !"retain".equals(split[1])) {
             System.err.printf("Invalid command: '%s'%n", split[1]);
+            isValid = false;
+        }
+        if (split.length == 4 && (split[2].matches("(.*/)?[+#](/.*)?"))) {
+            System.err.printf("Cannot publish to wildcard topic: '%s'%n", split[2]);
+            isValid = false;
         }
         return isValid;
     }
@@ -100,8 +517,11 @@ public class Publisher {
                 .forEach(element -> {
                     try {
                         var waitInterval = Integer.parseInt(element[0]) * 1000; // in milliseconds
-                        Thread.sleep(waitInterval);
-                        sendCommandAndWaitForOK(element[1]);
+                        if (waitInterval > 0){
+                            flushCommands();
+                            Thread.sleep(waitInterval);
+                        }
+                        sendCommand(element[1]);
 
                     } catch (InterruptedException e) {
                         if (!shutDown){
@@ -110,10 +530,372 @@ public class Publisher {
                         Thread.currentThread().interrupt();
                     } catch (NumberFormatException e){
                         System.err.printf("Invalid wait interval: '%s'%n", element[0]);
+                    } catch (IOException e) {
+                        if (!shutDown){
+                            e.printStackTrace();
+                        }
                     }
                 });
     }
 
+    //Streams the command file, sending each publish at its scheduled time divided by the replay speed.
+    //With -replay delay the first field is the wait after the previous command, with -replay timestamp
+    //it is the time the command was captured at, both in seconds with up to nanosecond decimals.
+    //Publishes are pipelined and reported by rate instead of one by one.
+    private static void replayCommandFile() throws IOException, InterruptedException {
+        var acknowledged = new AtomicLong();
+        var failed = new AtomicLong();
+        long sent = 0;
+        long scheduled = 0;
+        long firstTimestamp = -1;
+        long lag = 0;
+        long maxLag = 0;
+        try (var lines = new MappedLines(commandFile)){
+            var start = System.nanoTime();
+            var nextReport = start + REPORT_INTERVAL_NANOS;
+            var line = lines.next();
+            while (line != null && !shutDown){
+                var element = parseCommand(line);
+                line = lines.next();
+                long time;
+                try {
+                    time = parseNanos(element[0]);
+                }
+                catch (NumberFormatException e){
+                    System.err.printf("Invalid wait interval: '%s'%n", element[0]);
+                    continue;
+                }
+                if (!commandIsValid(element[1])){
+                    continue;
+                }
+                if (!replayTimestamps){
+                    scheduled += time;
+                }
+                else {
+                    firstTimestamp = firstTimestamp < 0 ? time : firstTimestamp;
+                    scheduled = time - firstTimestamp;
+                }
+                if (replaySpeed > 0){
+                    lag = waitUntil(start + (long) (scheduled / replaySpeed));
+                    maxLag = Math.max(maxLag, lag);
+                }
+                publishAsync(element[1]).whenComplete((ignored, error) -> {
+                    if (error == null){
+                        acknowledged.incrementAndGet();
+                    }
+                    else if (failed.getAndIncrement() == 0 && !shutDown){
+                        System.err.println(String.format("Failed to publish: %s", error.getMessage()));
+                    }
+                });
+                sent++;
+                var now = System.nanoTime();
+                if (now - nextReport >= 0){
+                    reportReplayRate(sent, now - start, scheduled, lag);
+                    nextReport = now + REPORT_INTERVAL_NANOS;
+                }
+            }
+            // the window drains once every publish is acknowledged
+            flushCommands();
+            inFlight.acquire(window);
+            inFlight.release(window);
+            reportReplayRate(sent, System.nanoTime() - start, scheduled, lag);
+        }
+        System.out.println(String.format("Replay done: %d acknowledged, %d failed, at most %.3f ms behind schedule",
+                acknowledged.get(), failed.get(), maxLag / 1e6));
+    }
+
+    private static void reportReplayRate(long sent, long elapsed, long scheduled, long lag){
+        var achieved = sent * 1e9 / Math.max(elapsed, 1);
+        // a file without waits has no target rate either
+        if (replaySpeed == 0 || scheduled == 0){
+            System.out.println(String.format("Replayed %d publishes in %.3f s: %.0f msg/s (target: as fast as possible)",
+                    sent, elapsed / 1e9, achieved));
+            return;
+        }
+        var target = sent * 1e9 / Math.max(scheduled / replaySpeed, 1);
+        System.out.println(String.format("Replayed %d publishes in %.3f s: %.0f msg/s (target %.0f msg/s), %.3f ms behind schedule",
+                sent, elapsed / 1e9, achieved, target, lag / 1e6));
+    }
+
+    //Waits until System.nanoTime() reaches `due` and returns how late it got there. Buffered commands are
+    //flushed before waiting, the last few microseconds are spun since parking is not that precise.
+    private static long waitUntil(long due) throws IOException {
+        var now = System.nanoTime();
+        if (due - now > SPIN_NANOS){
+            flushStreams();
+            now = System.nanoTime();
+        }
+        while (due - now > SPIN_NANOS){
+            LockSupport.parkNanos(due - now - SPIN_NANOS);
+            now = System.nanoTime();
+        }
+        while (due - now > 0){
+            Thread.onSpinWait();
+            now = System.nanoTime();
+        }
+        return now - due;
+    }
+
+    //"SECONDS[.FRACTION]" in nanoseconds, exact unlike going through a double
+    private static long parseNanos(String seconds){
+        var split = seconds.split("\\.", -1);
+        if (split.length > 2 || split[0].isEmpty() || !split[0].matches("\\d+")
+                || (split.length == 2 && !split[1].matches("\\d{1,9}"))){
+            throw new NumberFormatException(seconds);
+        }
+        var nanos = Math.multiplyExact(Long.parseLong(split[0]), 1_000_000_000L);
+        if (split.length == 2){
+            nanos += Long.parseLong(split[1]) * (long) Math.pow(10, 9 - split[1].length());
+        }
+        return nanos;
+    }
+
+    //The lines of a file read through a memory mapped window that slides along it, so files larger than
+    //memory stream through the page cache. Lines end with '\n' or "\r\n" and must fit in the window.
+    private static final class MappedLines implements Closeable {
+
+        private static final long WINDOW_BYTES = 256L * 1024 * 1024;
+
+        private final FileChannel channel;
+        private final long size;
+        private MappedByteBuffer window;
+        private long windowStart = 0;
+        private byte[] line = new byte[256];
+
+        MappedLines(String file) throws IOException {
+            channel = FileChannel.open(Path.of(file), StandardOpenOption.READ);
+            size = channel.size();
+            map(0);
+        }
+
+        //The next line, null at the end of the file
+        String next() throws IOException {
+            while (true){
+                var from = window.position();
+                for (int i = from; i < window.limit(); i++){
+                    if (window.get(i) == '\n'){
+                        var decoded = decode(from, i);
+                        window.position(i + 1);
+                        return decoded;
+                    }
+                }
+                if (windowStart + window.limit() == size){
+                    // the last line may have no line feed
+                    return from == window.limit() ? null : decode(from, window.limit());
+                }
+                if (from == 0){
+                    throw new IOException(String.format("Line at byte %d is longer than %d bytes", windowStart, WINDOW_BYTES));
+                }
+                map(windowStart + from);
+            }
+        }
+
+        private String decode(int from, int to){
+            if (to > from && window.get(to - 1) == '\r'){
+                to--;
+            }
+            if (line.length < to - from){
+                line = new byte[Math.max(to - from, line.length * 2)];
+            }
+            window.position(from);
+            window.get(line, 0, to - from);
+            return new String(line, 0, to - from, StandardCharsets.UTF_8);
+        }
+
+        private void map(long position) throws IOException {
+            windowStart = position;
+            window = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(WINDOW_BYTES, size - position));
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+
+    //Client end of the broker's shared memory transport (-shm on both sides), mirrors the broker's
+    //SharedMemoryTransport file layout. This client is the only writer of the ring towards the broker
+    //and the only reader of the ring back, so waiting for data or room spins and parks but never calls the kernel.
+    //Writes are serialized by the buffered stream on top, reads come from a single thread.
+    private static final class SharedMemoryChannel {
+
+        private static final int MAGIC = 'P' << 24 | 'S' << 16 | 'R' << 8 | '1';
+        private static final int RING_BYTES = 1 << 20;
+        private static final int CAPACITY_OFFSET = 4;
+        private static final int PID_OFFSET = 8;
+        private static final int TO_BROKER_WRITE = 64;
+        private static final int TO_BROKER_READ = 128;
+        private static final int TO_CLIENT_WRITE = 192;
+        private static final int TO_CLIENT_READ = 256;
+        private static final int CLIENT_CLOSED = 320;
+        private static final int BROKER_CLOSED = 384;
+        private static final int BROKER_ATTACHED = 448;
+        private static final int BROKER_PID = 456;
+        private static final int DATA_OFFSET = 512;
+        private static final VarHandle LONGS = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.nativeOrder());
+        private static final int IDLE_SPINS = 100;
+        private static final long MAX_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+        private static final long ATTACH_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(2);
+        private static final long BROKER_CHECK_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+        private final MappedByteBuffer file;
+        private final ByteBuffer toBroker;
+        private final ByteBuffer toClient;
+        private long written = 0;
+        private long brokerRead = 0;
+        private long read = 0;
+        private long brokerWritten = 0;
+        private ProcessHandle broker;
+        // shared by the reading and writing threads, an occasional extra check does no harm
+        private volatile long nextBrokerCheck = 0;
+
+        //Creates the file under a temporary name and renames it once set up, then waits for the broker to map it
+        SharedMemoryChannel(Path directory, boolean publisher) throws IOException {
+            var temporary = Files.createTempFile(directory, publisher ? "pub-" : "sub-", ".tmp");
+            try (var channel = FileChannel.open(temporary, StandardOpenOption.READ, StandardOpenOption.WRITE)){
+                file = channel.map(FileChannel.MapMode.READ_WRITE, 0, DATA_OFFSET + 2L * RING_BYTES);
+            }
+            file.order(ByteOrder.nativeOrder());
+            file.putInt(0, MAGIC).putInt(CAPACITY_OFFSET, RING_BYTES).putLong(PID_OFFSET, ProcessHandle.current().pid());
+            toBroker = file.duplicate().position(DATA_OFFSET).limit(DATA_OFFSET + RING_BYTES).slice();
+            toClient = file.duplicate().position(DATA_OFFSET + RING_BYTES).limit(DATA_OFFSET + 2 * RING_BYTES).slice();
+            var name = temporary.getFileName().toString();
+            var attached = temporary.resolveSibling(name.substring(0, name.length() - ".tmp".length())
+                    + (publisher ? ".pub" : ".sub"));
+            Files.move(temporary, attached, StandardCopyOption.ATOMIC_MOVE);
+            var deadline = System.nanoTime() + ATTACH_TIMEOUT_NANOS;
+            for (int idle = 1; (long) LONGS.getAcquire(file, BROKER_ATTACHED) == 0; idle++){
+                if (System.nanoTime() - deadline > 0){
+                    Files.deleteIfExists(attached);
+                    throw new IOException(String.format("No broker is serving shared memory clients in %s", directory));
+                }
+                backOff(idle);
+            }
+            broker = ProcessHandle.of(file.getLong(BROKER_PID))
+                    .orElseThrow(() -> new IOException("The broker exited while attaching"));
+        }
+
+        OutputStream output(){
+            return new OutputStream() {
+                @Override
+                public void write(int b) throws IOException {
+                    write(new byte[]{(byte) b}, 0, 1);
+                }
+
+                @Override
+                public void write(byte[] bytes, int offset, int length) throws IOException {
+                    var idle = 0;
+                    while (length > 0){
+                        var count = SharedMemoryChannel.this.write(bytes, offset, length);
+                        offset += count;
+                        length -= count;
+                        if (count == 0 && brokerGone()){
+                            throw new IOException("Broker closed the connection");
+                        }
+                        idle = count == 0 ? idle + 1 : 0;
+                        backOff(idle);
+                    }
+                }
+            };
+        }
+
+        InputStream input(){
+            return new InputStream() {
+                @Override
+                public int read() throws IOException {
+                    var single = new byte[1];
+                    return read(single, 0, 1) < 0 ? -1 : single[0] & 0xFF;
+                }
+
+                @Override
+                public int read(byte[] bytes, int offset, int length) throws IOException {
+                    for (int idle = 1; length > 0; idle++){
+                        var count = SharedMemoryChannel.this.read(bytes, offset, length);
+                        if (count > 0){
+                            return count;
+                        }
+                        // whatever the broker wrote before closing is read first
+                        if (brokerGone()){
+                            count = SharedMemoryChannel.this.read(bytes, offset, length);
+                            return count > 0 ? count : -1;
+                        }
+                        backOff(idle);
+                    }
+                    return 0;
+                }
+            };
+        }
+
+        private int write(byte[] bytes, int offset, int length){
+            if (RING_BYTES - (written - brokerRead) < length){
+                brokerRead = (long) LONGS.getAcquire(file, TO_BROKER_READ);
+            }
+            var count = (int) Math.min(RING_BYTES - (written - brokerRead), length);
+            for (int copied = 0; copied < count; ){
+                var index = (int) (written + copied) & (RING_BYTES - 1);
+                var chunk = Math.min(count - copied, RING_BYTES - index);
+                toBroker.clear().position(index);
+                toBroker.put(bytes, offset + copied, chunk);
+                copied += chunk;
+            }
+            if (count > 0){
+                written += count;
+                LONGS.setRelease(file, TO_BROKER_WRITE, written);
+            }
+            return count;
+        }
+
+        private int read(byte[] bytes, int offset, int length){
+            if (brokerWritten == read){
+                brokerWritten = (long) LONGS.getAcquire(file, TO_CLIENT_WRITE);
+            }
+            var count = (int) Math.min(brokerWritten - read, length);
+            for (int copied = 0; copied < count; ){
+                var index = (int) (read + copied) & (RING_BYTES - 1);
+                var chunk = Math.min(count - copied, RING_BYTES - index);
+                toClient.clear().position(index);
+                toClient.get(bytes, offset + copied, chunk);
+                copied += chunk;
+            }
+            if (count > 0){
+                read += count;
+                LONGS.setRelease(file, TO_CLIENT_READ, read);
+            }
+            return count;
+        }
+
+        //The broker let go of the file, or its process is gone without doing so.
+        //The process is checked while waiting on the broker, at most every BROKER_CHECK_NANOS.
+        private boolean brokerGone(){
+            if ((long) LONGS.getAcquire(file, BROKER_CLOSED) != 0){
+                return true;
+            }
+            var now = System.nanoTime();
+            if (now - nextBrokerCheck < 0){
+                return false;
+            }
+            nextBrokerCheck = now + BROKER_CHECK_NANOS;
+            return !broker.isAlive();
+        }
+
+        //The broker handles everything written so far before it lets go of the file
+        void close(){
+            LONGS.setRelease(file, CLIENT_CLOSED, 1L);
+        }
+
+        //Spins first, then parks for twice as long on every further idle round up to MAX_PARK_NANOS
+        private static void backOff(int idle){
+            if (idle == 0){
+                return;
+            }
+            if (idle <= IDLE_SPINS){
+                Thread.onSpinWait();
+                return;
+            }
+            LockSupport.parkNanos(Math.min(1L << Math.min(idle - IDLE_SPINS, 20), MAX_PARK_NANOS));
+        }
+    }
+
     private static String[] parseCommand(String command){
         var split = command.split(" ", 2);
         return new String[]{split[0], String.format("%s %s", id, split[1])};
@@ -138,10 +920,8 @@ public class Publisher {
 
     public static void sendCommandAndWaitForOK(String command){
         try {
-            var socketOutStream = new PrintWriter(brokerSocket.getOutputStream(), true);
-            var socketInStream = new BufferedReader(new InputStreamReader(brokerSocket.getInputStream()));
-            socketOutStream.println(command);
-            var response = socketInStream.readLine();
+            writeCommand(command);
+            var response = readResponse();
             if (response == null){
                 System.err.println("Couldn't connect to broker");
             }
@@ -162,7 +942,9 @@ public class Publisher {
     private static void validateArgs(String[] args){
         var invalidArgsMsg = "Invalid arguments";
         var unknownArgTemplate = "Unknown argument: '%s'";
-        var validArgFormat = "Publisher runs as follows: <publisher -i ID -r pub_port -h broker_IP -p port [-f command_file]>";
+        var validArgFormat = "Publisher runs as follows: <publisher -i ID[,ID...] [-r pub_port] -h broker_IP -p port [-f command_file] "
+                + "[-proto text|binary] [-window max_in_flight] "
+                + "[-batch-size max_entries] [-linger-ms max_wait] [-replay delay|timestamp] [-speed multiplier|max] [-shm directory]>";
         var invalidPort = "Value '%s' is not valid for %s port";
 
         var idArg = "-i";
@@ -170,14 +952,28 @@ public class Publisher {
         var brokerIpArg = "-h";
         var brokerPortArg = "-p";
         var commandFileArg = "-f";
+        var protocolArg = "-proto";
+        var windowArg = "-window";
+        var batchSizeArg = "-batch-size";
+        var lingerArg = "-linger-ms";
+        var replayArg = "-replay";
+        var speedArg = "-speed";
+        var sharedMemoryArg = "-shm";
 
         String id = null;
-        String port = null;
+        String port = "0";
         String brokerIp = null;
         String brokerPort = null;
         String commandFile = null;
+        String protocol = "text";
+        String window = null;
+        String batchSize = null;
+        String linger = null;
+        String replay = null;
+        String speed = null;
+        String sharedMemory = null;
 
-        if (args.length != 8 && args.length != 10){
+        if (args.length < 4 || args.length % 2 != 0){
             System.err.println(invalidArgsMsg);
             System.err.println(validArgFormat);
             System.exit(-1);
@@ -199,6 +995,27 @@ public class Publisher {
             else if (commandFileArg.equals(args[i])){
                 commandFile = args[i + 1];
             }
+            else if (protocolArg.equals(args[i])){
+                protocol = args[i + 1];
+            }
+            else if (windowArg.equals(args[i])){
+                window = args[i + 1];
+            }
+            else if (batchSizeArg.equals(args[i])){
+                batchSize = args[i + 1];
+            }
+            else if (lingerArg.equals(args[i])){
+                linger = args[i + 1];
+            }
+            else if (replayArg.equals(args[i])){
+                replay = args[i + 1];
+            }
+            else if (speedArg.equals(args[i])){
+                speed = args[i + 1];
+            }
+            else if (sharedMemoryArg.equals(args[i])){
+                sharedMemory = args[i + 1];
+            }
             else {
                 System.err.println(invalidArgsMsg);
                 System.err.println(String.format(unknownArgTemplate, args[i]));
@@ -207,7 +1024,8 @@ public class Publisher {
             }
         }
 
-        if (id == null || port == null || brokerIp == null || brokerPort == null ){
+        // a shared memory broker is found through its directory instead of its address
+        if (id == null || port == null || (sharedMemory == null && (brokerIp == null || brokerPort == null))){
             System.err.println(invalidArgsMsg);
             System.err.println(validArgFormat);
             System.exit(-1);
@@ -223,7 +1041,7 @@ public class Publisher {
         }
 
         try {
-            Publisher.brokerPort = Integer.parseInt(brokerPort);
+            Publisher.brokerPort = brokerPort == null ? 0 : Integer.parseInt(brokerPort);
         }
         catch(NumberFormatException e){
             System.err.println(invalidArgsMsg);
@@ -231,7 +1049,95 @@ public class Publisher {
             System.exit(-1);
         }
 
-        Publisher.id = id;
+        if (!"text".equals(protocol) && !"binary".equals(protocol)){
+            System.err.println(invalidArgsMsg);
+            System.err.println(String.format("Unknown protocol: '%s'", protocol));
+            System.exit(-1);
+        }
+
+        if (window != null){
+            try {
+                Publisher.window = Integer.parseInt(window);
+            }
+            catch(NumberFormatException e){
+                Publisher.window = -1;
+            }
+            if (Publisher.window <= 0){
+                System.err.println(invalidArgsMsg);
+                System.err.println(String.format("Value '%s' is not valid for the in-flight window", window));
+                System.exit(-1);
+            }
+        }
+
+        if (batchSize != null){
+            try {
+                Publisher.batchSize = Integer.parseInt(batchSize);
+            }
+            catch(NumberFormatException e){
+                Publisher.batchSize = -1;
+            }
+            if (Publisher.batchSize <= 0){
+                System.err.println(invalidArgsMsg);
+                System.err.println(String.format("Value '%s' is not valid for the batch size", batchSize));
+                System.exit(-1);
+            }
+            // batches are acknowledged asynchronously, so batching needs a window of batches in flight
+            if (Publisher.window == 0){
+                System.err.println(invalidArgsMsg);
+                System.err.println("Auto-batching requires -window");
+                System.exit(-1);
+            }
+        }
+
+        if (linger != null){
+            try {
+                Publisher.lingerMillis = Long.parseLong(linger);
+            }
+            catch(NumberFormatException e){
+                Publisher.lingerMillis = -1;
+            }
+            if (Publisher.lingerMillis < 0){
+                System.err.println(invalidArgsMsg);
+                System.err.println(String.format("Value '%s' is not valid for the linger time", linger));
+                System.exit(-1);
+            }
+        }
+
+        if (replay != null){
+            if (!"delay".equals(replay) && !"timestamp".equals(replay)){
+                System.err.println(invalidArgsMsg);
+                System.err.println(String.format("Unknown replay mode: '%s'", replay));
+                System.exit(-1);
+            }
+            // replayed publishes are pipelined and counted as they are acknowledged
+            if (commandFile == null || Publisher.window == 0){
+                System.err.println(invalidArgsMsg);
+                System.err.println("Replay requires -f and -window");
+                System.exit(-1);
+            }
+            Publisher.replay = true;
+            Publisher.replayTimestamps = "timestamp".equals(replay);
+        }
+
+        if (speed != null){
+            try {
+                Publisher.replaySpeed = "max".equals(speed) ? 0 : Double.parseDouble(speed);
+            }
+            catch(NumberFormatException e){
+                Publisher.replaySpeed = -1;
+            }
+            if (!Publisher.replay || !(Publisher.replaySpeed >= 0) || Double.isInfinite(Publisher.replaySpeed)
+                    || (Publisher.replaySpeed == 0 && !"max".equals(speed))){
+                System.err.println(invalidArgsMsg);
+                System.err.println(String.format("Value '%s' is not valid for the replay speed", speed));
+                System.exit(-1);
+            }
+        }
+
+        Publisher.ids = List.of(id.split(","));
+        Publisher.id = Publisher.ids.get(0);
+        Publisher.binaryProtocol = "binary".equals(protocol) || sharedMemory != null;
+        Publisher.sharedMemoryDirectory = sharedMemory == null ? null : Path.of(sharedMemory);
         Publisher.brokerIp = brokerIp;
         Publisher.commandFile = commandFile;
     }
@@ -0,0 +1,86 @@
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+//Text protocol state of one publisher connection, shared by the blocking readers and the event loops.
+//Lines are parsed in place in the reader's buffer, so a publish allocates only its Message and payload.
+final class PublisherCommands {
+
+    private static final byte[] EXIT = "exit".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] BATCH = "bpub".getBytes(StandardCharsets.UTF_8);
+    // N comes from the client, a larger batch grows its list as its lines arrive
+    private static final int MAX_PRESIZED_BATCH = 1024;
+
+    private final Connection connection;
+    private final CommandParser command = new CommandParser();
+    private String batchPubId;
+    private String batchCorrelationId;
+    private List<Message> batch;
+    private int batchRemaining = 0;
+    private boolean closed = false;
+
+    PublisherCommands(Connection connection) {
+        this.connection = connection;
+    }
+
+    //Handles every complete line in bytes[from, to) and returns where the incomplete rest starts.
+    //Stops once an exit command closed the connection, whatever follows it is left unread.
+    int lines(byte[] bytes, int from, int to){
+        var lineStart = from;
+        for (int i = from; i < to && !closed; i++){
+            if (bytes[i] == '\n'){
+                var lineEnd = i > lineStart && bytes[i - 1] == '\r' ? i - 1 : i;
+                line(bytes, lineStart, lineEnd);
+                lineStart = i + 1;
+            }
+        }
+        return lineStart;
+    }
+
+    boolean closed(){
+        return closed;
+    }
+
+    private void line(byte[] bytes, int start, int end){
+        if (batchRemaining > 0){
+            command.parse(bytes, start, end, 2);
+            batch.add(new Message(command.string(0), command.bytes(1)));
+            if (--batchRemaining == 0){
+                Broker.handlePubBatch(batchPubId, batchCorrelationId, batch, connection);
+            }
+            return;
+        }
+        command.parse(bytes, start, end, 4);
+        if (command.equals(1, EXIT)){
+            BrokerLog.log(BrokerLog.Level.INFO, "Command from publisher: %s", command.line());
+            Broker.registerPublisher(command.string(0), connection);
+            // the connection stays open while it carries other publisher ids
+            closed = Broker.disconnectPublisherWithId(command.string(0));
+            return;
+        }
+        var batchSize = batchSize();
+        if (batchSize < 0){
+            Broker.handlePubCommand(command, connection);
+            return;
+        }
+        // 'PUB_ID bpub N' opens a batch made of the next N lines, each one 'TOPIC MESSAGE'
+        if (BrokerLog.samplePublish()){
+            BrokerLog.log(BrokerLog.Level.INFO, "Command from publisher: %s", command.line());
+        }
+        batchPubId = command.string(0);
+        batchCorrelationId = command.correlationId(1);
+        batch = new ArrayList<>(Math.min(batchSize, MAX_PRESIZED_BATCH));
+        batchRemaining = batchSize;
+        if (batchSize == 0){
+            Broker.handlePubBatch(batchPubId, batchCorrelationId, batch, connection);
+        }
+    }
+
+    //-1 unless the command is a batch header
+    private int batchSize(){
+        if (command.fields() != 3 || !command.startsWith(1, BATCH)){
+            return -1;
+        }
+        return Math.max(command.intValue(2, -1), -1);
+    }
+}
@@ -0,0 +1,55 @@
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+//Last retained message of each topic, bounded by a byte budget. The least recently published or
+//subscribed topics are evicted first. Retaining an empty message clears the topic's value.
+final class RetainedMessages {
+
+    // rough per-entry cost of the map node, the Message and the topic string
+    private static final int ENTRY_OVERHEAD = 96;
+
+    private final long byteBudget;
+    private final LinkedHashMap<String, Message> messages = new LinkedHashMap<>(16, 0.75f, true);
+    private long bytes = 0;
+
+    RetainedMessages(long byteBudget) {
+        this.byteBudget = byteBudget;
+    }
+
+    synchronized void retain(Message message){
+        var previous = messages.remove(message.topic);
+        if (previous != null){
+            bytes -= size(previous);
+        }
+        if (message.payload.length == 0){
+            return;
+        }
+        messages.put(message.topic, message);
+        bytes += size(message);
+        var eldest = messages.values().iterator();
+        while (bytes > byteBudget && eldest.hasNext()){
+            bytes -= size(eldest.next());
+            eldest.remove();
+        }
+    }
+
+    synchronized Message get(String topic){
+        return messages.get(topic);
+    }
+
+    //Scans every retained topic, wildcard subscriptions are expected to be far rarer than publishes
+    synchronized List<Message> matching(String pattern){
+        var matches = new ArrayList<Message>();
+        for (var message : messages.values()){
+            if (TopicTrie.matches(pattern, message.topic)){
+                matches.add(message);
+            }
+        }
+        return matches;
+    }
+
+    private static long size(Message message){
+        return ENTRY_OVERHEAD + 2L * message.topic.length() + message.payload.length;
+    }
+}
@@ -0,0 +1,487 @@
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+//Optional transport for clients on the broker's host. A client creates one memory mapped file in the shared
+//directory holding two single producer, single consumer byte rings, one towards the broker and one back,
+//and renames it to NAME.pub or NAME.sub once set up. The rings carry the binary protocol's frames.
+//Positions are published with release stores and read with acquire loads, so once both sides are running a
+//message crosses without a system call. One reader thread drains every client's ring and handles the frames,
+//one writer thread copies every connection's outbound queue into its ring, so a subscriber's full queue
+//under the block policy holds up the reader but never the writer that empties it. Both spin and then back
+//off with growing parks while idle, the directory is scanned for new clients every SCAN_INTERVAL_NANOS.
+//
+//File layout, positions are longs in native byte order on separate cache lines:
+//  0 magic 'PSR1', 4 ring capacity (power of two), 8 client pid
+//  64 to-broker write position, 128 to-broker read position, 192 to-client write position,
+//  256 to-client read position, 320 client closed, 384 broker closed, 448 broker attached, 456 broker pid
+//  512 to-broker ring, 512 + capacity to-client ring
+final class SharedMemoryTransport {
+
+    static final int MAGIC = 'P' << 24 | 'S' << 16 | 'R' << 8 | '1';
+    static final int CAPACITY_OFFSET = 4;
+    static final int PID_OFFSET = 8;
+    static final int TO_BROKER_WRITE = 64;
+    static final int TO_BROKER_READ = 128;
+    static final int TO_CLIENT_WRITE = 192;
+    static final int TO_CLIENT_READ = 256;
+    static final int CLIENT_CLOSED = 320;
+    static final int BROKER_CLOSED = 384;
+    static final int BROKER_ATTACHED = 448;
+    static final int BROKER_PID = 456;
+    static final int DATA_OFFSET = 512;
+
+    private static final VarHandle LONGS = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.nativeOrder());
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+    private static final int IDLE_SPINS = 100;
+    private static final long MAX_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+    private static final long SCAN_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private static final List<RingConnection> connections = new CopyOnWriteArrayList<>();
+    private static final Set<Path> attached = new HashSet<>();
+    private static Path directory;
+    private static Thread readerThread;
+    private static Thread writerThread;
+    private static volatile boolean writerSleeping = false;
+    private static volatile boolean shutDown = false;
+
+    private SharedMemoryTransport() {
+    }
+
+    static void start(Path directory) throws IOException {
+        SharedMemoryTransport.directory = Files.createDirectories(directory);
+        readerThread = new Thread(SharedMemoryTransport::readLoop, "broker-shm-reader");
+        writerThread = new Thread(SharedMemoryTransport::writeLoop, "broker-shm-writer");
+        readerThread.setDaemon(true);
+        writerThread.setDaemon(true);
+        readerThread.start();
+        writerThread.start();
+    }
+
+    static void shutdown(){
+        shutDown = true;
+        for (var connection : connections){
+            connection.close();
+        }
+        if (readerThread != null){
+            LockSupport.unpark(readerThread);
+            LockSupport.unpark(writerThread);
+        }
+    }
+
+    private static void wakeWriter(){
+        if (writerSleeping){
+            LockSupport.unpark(writerThread);
+        }
+    }
+
+    private static void readLoop(){
+        var idle = 0;
+        var nextScan = System.nanoTime();
+        while (!shutDown){
+            if (System.nanoTime() - nextScan >= 0){
+                scan();
+                nextScan = System.nanoTime() + SCAN_INTERVAL_NANOS;
+            }
+            var busy = false;
+            for (var connection : connections){
+                busy |= connection.readFrames();
+            }
+            idle = busy ? 0 : idle + 1;
+            backOff(idle);
+        }
+    }
+
+    private static void writeLoop(){
+        var idle = 0;
+        while (!shutDown){
+            var busy = false;
+            var pending = false;
+            for (var connection : connections){
+                busy |= connection.flush();
+                pending |= connection.hasPending();
+            }
+            idle = busy ? 0 : idle + 1;
+            if (idle <= IDLE_SPINS || pending){
+                // a client that stopped reading is waited for, not slept on
+                backOff(idle);
+                continue;
+            }
+            // producers check `writerSleeping` after queueing, so either they see it or this sees their frame
+            writerSleeping = true;
+            var empty = true;
+            for (var connection : connections){
+                empty &= !connection.hasPending();
+            }
+            if (empty && !shutDown){
+                LockSupport.park();
+            }
+            writerSleeping = false;
+            idle = 0;
+        }
+    }
+
+    //Spins first, then parks for twice as long on every further idle round up to MAX_PARK_NANOS
+    private static void backOff(int idle){
+        if (idle == 0){
+            return;
+        }
+        if (idle <= IDLE_SPINS){
+            Thread.onSpinWait();
+            return;
+        }
+        LockSupport.parkNanos(Math.min(1L << Math.min(idle - IDLE_SPINS, 20), MAX_PARK_NANOS));
+    }
+
+    //Attaches the clients that appeared since the last scan and drops those whose process is gone
+    private static void scan(){
+        var present = new HashSet<Path>();
+        try (var files = Files.newDirectoryStream(directory, "*.{pub,sub}")){
+            for (var file : files){
+                present.add(file);
+                if (attached.add(file)){
+                    attach(file);
+                }
+            }
+            attached.retainAll(present);
+        } catch (IOException e) {
+            if (!shutDown){
+                BrokerLog.log(BrokerLog.Level.WARN, "Failed to scan shared memory directory %s: %s", directory, e);
+            }
+        }
+        for (var connection : connections){
+            if (!connection.clientAlive()){
+                BrokerLog.log(BrokerLog.Level.WARN, "Shared memory client %s exited without closing", connection.file);
+                connection.close();
+                Broker.connectionClosed(connection);
+            }
+        }
+    }
+
+    //A file that fails to attach is left alone until it disappears, whatever was wrong with it
+    private static void attach(Path file){
+        try (var channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)){
+            // the size is checked before mapping, a file over 2GB cannot be mapped at all
+            if (channel.size() < DATA_OFFSET || channel.size() > Integer.MAX_VALUE){
+                throw new ProtocolException("not a shared memory client file");
+            }
+            var mapped = channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size());
+            mapped.order(ByteOrder.nativeOrder());
+            if (mapped.getInt(0) != MAGIC){
+                throw new ProtocolException("not a shared memory client file");
+            }
+            var capacity = mapped.getInt(CAPACITY_OFFSET);
+            if (Integer.bitCount(capacity) != 1
+                    || channel.size() != DATA_OFFSET + 2L * capacity){
+                throw new ProtocolException("not a shared memory client file");
+            }
+            var connection = new RingConnection(file, mapped, capacity, file.toString().endsWith(".pub"));
+            connections.add(connection);
+            // each side watches the other's pid, a process killed outright never marks the file closed
+            mapped.putLong(BROKER_PID, ProcessHandle.current().pid());
+            LONGS.setRelease(mapped, BROKER_ATTACHED, 1L);
+            BrokerLog.log(BrokerLog.Level.INFO, "Shared memory client attached: %s", file);
+        } catch (IOException | RuntimeException e) {
+            BrokerLog.log(BrokerLog.Level.WARN, "Ignoring shared memory file %s: %s", file, e.getMessage());
+        }
+    }
+
+    //One direction of a client's file. Only one thread ever writes and only one ever reads,
+    //each keeps its own position and re-reads the other side's only when it runs out of data or room.
+    static final class Ring {
+
+        private final MappedByteBuffer file;
+        private final ByteBuffer data;
+        private final int writeOffset;
+        private final int readOffset;
+        private final int capacity;
+        private long position;
+        private long otherPosition;
+
+        Ring(MappedByteBuffer file, int dataOffset, int capacity, int writeOffset, int readOffset, boolean producer) {
+            this.file = file;
+            this.data = file.duplicate().position(dataOffset).limit(dataOffset + capacity).slice();
+            this.writeOffset = writeOffset;
+            this.readOffset = readOffset;
+            this.capacity = capacity;
+            this.position = (long) LONGS.getAcquire(file, producer ? writeOffset : readOffset);
+            this.otherPosition = (long) LONGS.getAcquire(file, producer ? readOffset : writeOffset);
+        }
+
+        //Producer side: copies as much of src as fits and returns how much that was
+        int write(ByteBuffer src){
+            var free = capacity - (position - otherPosition);
+            if (free < src.remaining()){
+                otherPosition = (long) LONGS.getAcquire(file, readOffset);
+                free = capacity - (position - otherPosition);
+            }
+            var count = (int) Math.min(free, src.remaining());
+            var written = 0;
+            while (written < count){
+                var index = (int) (position + written) & (capacity - 1);
+                var chunk = Math.min(count - written, capacity - index);
+                var limit = src.limit();
+                src.limit(src.position() + chunk);
+                data.clear().position(index);
+                data.put(src);
+                src.limit(limit);
+                written += chunk;
+            }
+            if (count > 0){
+                position += count;
+                LONGS.setRelease(file, writeOffset, position);
+            }
+            return count;
+        }
+
+        //Consumer side: copies as many available bytes as dst has room for and returns how many that was
+        int read(ByteBuffer dst){
+            if (otherPosition == position){
+                otherPosition = (long) LONGS.getAcquire(file, writeOffset);
+            }
+            var count = (int) Math.min(otherPosition - position, dst.remaining());
+            var read = 0;
+            while (read < count){
+                var index = (int) (position + read) & (capacity - 1);
+                var chunk = Math.min(count - read, capacity - index);
+                data.clear().position(index).limit(index + chunk);
+                dst.put(data);
+                read += chunk;
+            }
+            if (count > 0){
+                position += count;
+                LONGS.setRelease(file, readOffset, position);
+            }
+            return count;
+        }
+
+        boolean isEmpty(){
+            return position == (long) LONGS.getAcquire(file, writeOffset);
+        }
+    }
+
+    //A shared memory client, always speaking the binary protocol. The reader thread owns the inbound ring
+    //and the writer thread the outbound one, other threads only queue outbound frames.
+    private static final class RingConnection implements Connection {
+
+        private final Path file;
+        private final MappedByteBuffer mapped;
+        private final Ring inbound;
+        private final Ring outbound;
+        private final long pid;
+        private final OutboundQueue<ByteBuffer> queue = Broker.newOutboundQueue();
+        private final ArrayList<ByteBuffer> drained = new ArrayList<>();
+        private final ArrayDeque<ByteBuffer> writing = new ArrayDeque<>();
+        private final BinaryProtocol.Session session;
+        private ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        private boolean negotiated = false;
+        private volatile boolean closed = false;
+
+        RingConnection(Path file, MappedByteBuffer mapped, int capacity, boolean publisher) {
+            this.file = file;
+            this.mapped = mapped;
+            this.inbound = new Ring(mapped, DATA_OFFSET, capacity, TO_BROKER_WRITE, TO_BROKER_READ, false);
+            this.outbound = new Ring(mapped, DATA_OFFSET + capacity, capacity, TO_CLIENT_WRITE, TO_CLIENT_READ, true);
+            this.pid = mapped.getLong(PID_OFFSET);
+            this.session = new BinaryProtocol.Session(this, publisher);
+            BrokerMetrics.connectionOpened();
+        }
+
+        @Override
+        public void send(ByteBuffer reply) {
+            if (closed){
+                return;
+            }
+            queue.put(reply);
+            wakeWriter();
+        }
+
+        @Override
+        public boolean deliver(String subscriberId, Message message) {
+            if (closed){
+                return true;
+            }
+            boolean accepted;
+            synchronized (session){
+                var topicDefinition = session.announce(message.topic);
+                if (topicDefinition != null){
+                    queue.put(topicDefinition);
+                }
+                accepted = queue.offer(session.messageFrame(subscriberId, message));
+            }
+            BrokerMetrics.delivered(message);
+            wakeWriter();
+            return accepted;
+        }
+
+        @Override
+        public void multiplex() {
+            // binary frames always name their recipient
+        }
+
+        @Override
+        public void includeOffsets() {
+            // binary frames of stored messages always carry their offset
+        }
+
+        @Override
+        public boolean awaitCapacity() throws InterruptedException {
+            return queue.awaitCapacity();
+        }
+
+        @Override
+        public long droppedMessages() {
+            return queue.dropped();
+        }
+
+        @Override
+        public long deliveredMessages() {
+            return queue.delivered();
+        }
+
+        @Override
+        public int backlog() {
+            return queue.size();
+        }
+
+        boolean clientAlive(){
+            return closed || ProcessHandle.of(pid).map(ProcessHandle::isAlive).orElse(false);
+        }
+
+        //Reader thread: handles the frames that arrived, returns false if there were none.
+        //The thread serves every client, so anything going wrong with one closes only that one.
+        boolean readFrames(){
+            if (closed){
+                return false;
+            }
+            try {
+                return readAvailable();
+            } catch (IOException | RuntimeException e) {
+                System.err.println(String.format("Closing connection: %s", e));
+                close();
+                Broker.connectionClosed(this);
+                return true;
+            }
+        }
+
+        private boolean readAvailable() throws IOException {
+            var read = inbound.read(readBuffer);
+            if (read == 0){
+                // everything the client wrote before closing has been handled by now
+                if ((long) LONGS.getAcquire(mapped, CLIENT_CLOSED) != 0 && inbound.isEmpty()){
+                    close();
+                    Broker.connectionClosed(this);
+                }
+                return false;
+            }
+            BrokerMetrics.bytesRead(read);
+            readBuffer.flip();
+            if (!negotiated && !negotiate()){
+                readBuffer.compact();
+                return true;
+            }
+            var needed = BinaryProtocol.decodeFrames(readBuffer, session);
+            readBuffer.compact();
+            if (readBuffer.capacity() < needed || !readBuffer.hasRemaining()){
+                // a single frame larger than the buffer, grow it
+                var larger = ByteBuffer.allocate(Math.max(needed, readBuffer.capacity() * 2));
+                readBuffer.flip();
+                larger.put(readBuffer);
+                readBuffer = larger;
+            }
+            return true;
+        }
+
+        private boolean negotiate() throws ProtocolException {
+            var magic = BinaryProtocol.MAGIC;
+            if (readBuffer.remaining() < magic.length){
+                return false;
+            }
+            var prefix = new byte[magic.length];
+            readBuffer.get(prefix);
+            if (!BinaryProtocol.startsWithMagic(prefix, prefix.length)){
+                throw new ProtocolException("Shared memory clients must speak the binary protocol");
+            }
+            negotiated = true;
+            return true;
+        }
+
+        boolean hasPending(){
+            return !closed && (!writing.isEmpty() || !queue.isEmpty());
+        }
+
+        //Writer thread: copies queued frames into the ring until it is full, returns false if nothing was copied.
+        //Positions the client corrupted close only this client, the writer serves every other one too.
+        boolean flush(){
+            if (closed){
+                return false;
+            }
+            try {
+                return copyQueued();
+            } catch (RuntimeException e) {
+                System.err.println(String.format("Closing connection: %s", e));
+                close();
+                Broker.connectionClosed(this);
+                return true;
+            }
+        }
+
+        private boolean copyQueued(){
+            var progress = false;
+            while (true){
+                if (writing.isEmpty()){
+                    queue.drainTo(drained, Broker.writeBatchSize());
+                    for (var frame : drained){
+                        // frames are shared between connections, each one writes through its own view
+                        writing.add(frame.duplicate());
+                    }
+                    drained.clear();
+                    if (writing.isEmpty()){
+                        return progress;
+                    }
+                }
+                var frame = writing.peekFirst();
+                var written = outbound.write(frame);
+                BrokerMetrics.bytesWritten(written);
+                progress |= written > 0;
+                if (frame.hasRemaining()){
+                    return progress; // the client has not caught up yet
+                }
+                writing.pollFirst();
+            }
+        }
+
+        @Override
+        public void close() {
+            if (!queue.close()){
+                return;
+            }
+            closed = true;
+            session.close();
+            LONGS.setRelease(mapped, BROKER_CLOSED, 1L);
+            connections.remove(this);
+            try {
+                Files.deleteIfExists(file);
+            } catch (IOException e) {
+                System.err.println(String.format("Failed to delete %s", file));
+            }
+            BrokerMetrics.connectionClosed();
+        }
+    }
+}
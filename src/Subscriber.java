@@ -1,34 +1,222 @@
 import java.io.*;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
 import java.net.InetAddress;
+import java.net.ProtocolException;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Scanner;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
 
-//subscriber -i ID -r sub_port -h broker_IP -p port [-f command_file]
+//subscriber -i ID[,ID...] [-r sub_port] -h broker_IP -p port [-f command_file] [-proto text|binary] [-shm directory]
+//With -shm the subscriber talks to a broker on the same host through shared memory, always in the binary protocol.
+//Several ids share the one connection, command file lines are sent as the first id.
 public class Subscriber {
 
     private static String id;
-    private static int port;
+    private static List<String> ids;
+    private static int port = 0;
     private static String brokerIp;
     private static int brokerPort;
     private static String commandFile;
     private static Socket brokerSocket;
+    private static Path sharedMemoryDirectory;
+    private static SharedMemoryChannel sharedMemory;
     private static boolean shutDown = false;
-    private static String pendingCommand = null;
+    private static long nextSequence = 0;
+    private static final Map<Long, String> pendingCommands = new ConcurrentHashMap<>();
+    private static boolean binaryProtocol = false;
+    private static PrintWriter socketOutStream;
+    private static BufferedReader socketInStream;
+    private static DataOutputStream binaryOutStream;
+    private static DataInputStream binaryInStream;
+
+    // binary framing, mirrors the broker's BinaryProtocol
+    private static final byte[] MAGIC = {0, 'P', 'S', 'B'};
+    private static final byte REGISTER = 1;
+    private static final byte TOPIC = 2;
+    private static final byte SUB = 4;
+    private static final byte UNSUB = 5;
+    private static final byte EXIT = 6;
+    private static final byte OK = 7;
+    private static final byte MSG = 8;
+    private static final byte MSUB = 11;
+    private static final byte MUNSUB = 12;
+    private static final byte ERROR = 15;
+    private static final byte OMSG = 16;
+    private static final Map<String, Integer> topicAliases = new HashMap<>();
+    private static final Map<Integer, String> brokerTopics = new HashMap<>();
 
     private static void sendExitCommand(){
-        if (brokerSocket == null || brokerSocket.isClosed()){
+        if (sharedMemory == null && (brokerSocket == null || brokerSocket.isClosed())){
             return;
         }
         try {
-            var socketOutStream = new PrintWriter(brokerSocket.getOutputStream(), true);
-            socketOutStream.println(String.format("%s exit", id));
+            for (var clientId : ids){
+                writeCommand(String.format("%s exit", clientId));
+            }
+            flushCommands();
         } catch (IOException e) {
             e.printStackTrace();
         }
     }
 
+    private static void openStreams() throws IOException {
+        if (!binaryProtocol){
+            // commands are pipelined and flushed explicitly, so several of them share one write
+            socketOutStream = new PrintWriter(new BufferedWriter(new OutputStreamWriter(brokerSocket.getOutputStream())));
+            socketInStream = new BufferedReader(new InputStreamReader(brokerSocket.getInputStream()));
+            // with several ids every message has to name its recipient
+            if (multiplexed()){
+                for (var clientId : ids){
+                    socketOutStream.println(String.format("%s mux", clientId));
+                }
+            }
+            // every message then names its offset, the one to resume a stored topic from is the next
+            socketOutStream.println(String.format("%s offsets", ids.get(0)));
+            socketOutStream.flush();
+            return;
+        }
+        var output = sharedMemory != null ? sharedMemory.output() : brokerSocket.getOutputStream();
+        var input = sharedMemory != null ? sharedMemory.input() : brokerSocket.getInputStream();
+        binaryOutStream = new DataOutputStream(new BufferedOutputStream(output));
+        binaryInStream = new DataInputStream(new BufferedInputStream(input));
+        binaryOutStream.write(MAGIC);
+        for (int alias = 0; alias < ids.size(); alias++){
+            writeFrame(REGISTER, alias, 0, ids.get(alias).getBytes(StandardCharsets.UTF_8));
+        }
+        binaryOutStream.flush();
+    }
+
+    private static boolean multiplexed(){
+        return ids.size() > 1;
+    }
+
+    //Each id is registered under its position in -i
+    private static int clientAlias(String clientId){
+        return Math.max(ids.indexOf(clientId), 0);
+    }
+
+    //Sends a command line, translated into frames when the binary protocol is used
+    private static synchronized void writeCommand(String command) throws IOException {
+        if (!binaryProtocol){
+            socketOutStream.println(command);
+            return;
+        }
+        var split = command.split(" ", 3);
+        var clientAlias = clientAlias(split[0]);
+        if ("exit".equals(split[1])){
+            writeFrame(EXIT, clientAlias, 0, new byte[0]);
+            return;
+        }
+        var verb = split[1].split("@", 2);
+        var sequence = Long.parseLong(verb[1]);
+        if ("sub".equals(verb[0]) || "unsub".equals(verb[0])){
+            // a replayed subscription appends the offset to start from, earliest being offset 0
+            var topicSplit = split[2].split(" ", 2);
+            var replay = topicSplit.length == 2 && !"from:latest".equals(topicSplit[1]);
+            var payload = ByteBuffer.allocate(replay ? 2 * Long.BYTES : Long.BYTES).putLong(sequence);
+            if (replay){
+                payload.putLong("from:earliest".equals(topicSplit[1]) ? 0
+                        : Long.parseLong(topicSplit[1].substring("from:".length())));
+            }
+            writeFrame("sub".equals(verb[0]) ? SUB : UNSUB, clientAlias, topicAlias(topicSplit[0]), payload.array());
+            return;
+        }
+        // topic aliases are defined before the frame that uses them
+        var topics = split[2].split(" ");
+        var aliases = new int[topics.length];
+        for (int i = 0; i < topics.length; i++){
+            aliases[i] = topicAlias(topics[i]);
+        }
+        var payload = ByteBuffer.allocate(Long.BYTES + Integer.BYTES * (1 + topics.length))
+                .putLong(sequence)
+                .putInt(topics.length);
+        for (var alias : aliases){
+            payload.putInt(alias);
+        }
+        writeFrame("msub".equals(verb[0]) ? MSUB : MUNSUB, clientAlias, 0, payload.array());
+    }
+
+    private static synchronized void flushCommands() throws IOException {
+        if (binaryProtocol){
+            binaryOutStream.flush();
+        }
+        else {
+            socketOutStream.flush();
+        }
+    }
+
+    private static int topicAlias(String topic) throws IOException {
+        var alias = topicAliases.get(topic);
+        if (alias == null){
+            alias = topicAliases.size();
+            topicAliases.put(topic, alias);
+            writeFrame(TOPIC, 0, alias, topic.getBytes(StandardCharsets.UTF_8));
+        }
+        return alias;
+    }
+
+    private static void writeFrame(byte opcode, int clientAlias, int topicAlias, byte[] payload) throws IOException {
+        binaryOutStream.writeByte(opcode);
+        binaryOutStream.writeInt(clientAlias);
+        binaryOutStream.writeInt(topicAlias);
+        binaryOutStream.writeInt(payload.length);
+        binaryOutStream.write(payload);
+    }
+
+    //Reads the broker's next line ("OK SEQ", "ERR SEQ" or "TOPIC OFFSET MESSAGE", "SUB_ID TOPIC OFFSET MESSAGE" with
+    //several ids, OFFSET is -1 for messages the broker did not store), binary frames are translated into the same lines
+    private static String readResponse() throws IOException {
+        if (!binaryProtocol){
+            return socketInStream.readLine();
+        }
+        while (true){
+            byte opcode;
+            try {
+                opcode = binaryInStream.readByte();
+            } catch (EOFException e) {
+                return null;
+            }
+            var clientAlias = binaryInStream.readInt();
+            var topicId = binaryInStream.readInt();
+            var payload = new byte[binaryInStream.readInt()];
+            binaryInStream.readFully(payload);
+            switch (opcode){
+                case TOPIC:
+                    brokerTopics.put(topicId, new String(payload, StandardCharsets.UTF_8));
+                    break;
+                case OK:
+                    return payload.length == Long.BYTES ? String.format("OK %d", ByteBuffer.wrap(payload).getLong()) : "OK";
+                case ERROR:
+                    return payload.length == Long.BYTES ? String.format("ERR %d", ByteBuffer.wrap(payload).getLong()) : "ERR";
+                case MSG:
+                case OMSG:
+                    var body = ByteBuffer.wrap(payload);
+                    var offset = opcode == OMSG ? body.getLong() : -1;
+                    var message = String.format("%s %d %s", brokerTopics.get(topicId), offset,
+                            new String(payload, body.position(), body.remaining(), StandardCharsets.UTF_8));
+                    return multiplexed() ? String.format("%s %s", ids.get(clientAlias), message) : message;
+                default:
+                    throw new ProtocolException(String.format("Unexpected opcode: %d", opcode));
+            }
+        }
+    }
+
     private static Runnable gracefulShutdownRunnable() {
         return () -> {
 
@@ -41,6 +229,9 @@ public class Subscriber {
                     System.err.println("Failed to close broker socket");
                 }
             }
+            if (sharedMemory != null){
+                sharedMemory.close();
+            }
             System.out.println("Closed broker socket");
         };
     }
@@ -53,19 +244,26 @@ public class Subscriber {
         List<String> commands = commandFile == null ? List.of()
                 : readCommandsFromFile(commandFile);
         try (var cmdScanner = new Scanner(System.in)){
-            System.out.printf("Subscriber with id: '%s' is up!%n", id);
-            brokerSocket = new Socket(brokerIp, brokerPort, InetAddress.getLocalHost(), port);
-            sendCommandsFromFileToBroker(commands, brokerSocket);
+            System.out.printf("Subscriber with id: '%s' is up!%n", String.join(",", ids));
+            if (sharedMemoryDirectory != null){
+                sharedMemory = new SharedMemoryChannel(sharedMemoryDirectory, false);
+            }
+            else {
+                brokerSocket = new Socket(brokerIp, brokerPort, InetAddress.getLocalHost(), port);
+            }
+            openStreams();
 
             var readOnPortThread = new Thread(readOnPortRunnable());
             readOnPortThread.start();
-
+            sendCommandsFromFileToBroker(commands);
+            flushCommands();
 
             System.out.println("\nPlease enter a command in the following format: <SUB_ID COMMAND TOPIC>");
             var userInput = cmdScanner.nextLine();
             while (userInput != null){
                 if (commandIsValid(userInput)){
                     sendCommand(userInput);
+                    flushCommands();
                 }
                 System.out.println("\nPlease enter a command in the following format: <SUB_ID COMMAND TOPIC>");
                 userInput = cmdScanner.nextLine();
@@ -80,24 +278,30 @@ public class Subscriber {
     private static Runnable readOnPortRunnable(){
         return () -> {
             try {
-                var socketInStream = new BufferedReader(new InputStreamReader(brokerSocket.getInputStream()));
-                var message = socketInStream.readLine();
+                var message = readResponse();
                 while (message != null){
                     var split = message.split(" ", 2);
                     if ("OK".equals(split[0])){
-                        var completedCommand = removePendingCommand();
-                        var cmdSplit = completedCommand.split(" ", 3);
-                        if ("sub".equals(cmdSplit[1])){
-                            System.out.println(String.format("Subscribed to topic: %s", cmdSplit[2]));
+                        // only the exit command is acknowledged without a sequence number
+                        if (split.length == 2){
+                            commandAcknowledged(Long.parseLong(split[1]));
                         }
-                        else{
-                            System.out.println(String.format("Unsubscribed from topic: %s", cmdSplit[2]));
+                    }
+                    else if ("ERR".equals(split[0])){
+                        if (split.length == 2){
+                            commandRejected(Long.parseLong(split[1]));
                         }
                     }
+                    else if (multiplexed()){
+                        var received = message.split(" ", 4);
+                        System.out.printf("Received msg for %s on topic %s%s: %s%n",
+                                received[0], received[1], atOffset(received[2]), received[3]);
+                    }
                     else{
-                        System.out.printf("Received msg for topic %s: %s%n", split[0], split[1]);
+                        var received = message.split(" ", 3);
+                        System.out.printf("Received msg for topic %s%s: %s%n", received[0], atOffset(received[1]), received[2]);
                     }
-                    message = socketInStream.readLine();
+                    message = readResponse();
                 }
             } catch (IOException e) {
                 if (!shutDown){
@@ -107,32 +311,43 @@ public class Subscriber {
         };
     }
 
-    private static void sendCommandsFromFileToBroker(List<String> commands, Socket brokerSocket) {
+    //Stored messages show their offset, a later 'sub TOPIC from:OFFSET' with the next one resumes without a gap
+    private static String atOffset(String offset){
+        return "-1".equals(offset) ? "" : String.format(" at offset %s", offset);
+    }
+
+    //File commands are pipelined, the acknowledgements are matched by the reading thread
+    private static void sendCommandsFromFileToBroker(List<String> commands) {
         commands.stream()
                 .map(Subscriber::parseCommand)
                 .filter(element -> Subscriber.commandIsValid(element[1]))
                 .forEach(element -> {
                     try {
                         var waitInterval = Integer.parseInt(element[0]) * 1000; // in milliseconds
-                        Thread.sleep(waitInterval);
-                        sendCommandAndWaitForOK(element[1]);
+                        if (waitInterval > 0){
+                            flushCommands();
+                            Thread.sleep(waitInterval);
+                        }
+                        sendCommand(element[1]);
 
                     } catch (InterruptedException e) {
                         e.printStackTrace();
                         Thread.currentThread().interrupt();
                     } catch (NumberFormatException e){
                         System.err.printf("Invalid wait interval: '%s'%n", element[0]);
+                    } catch (IOException e) {
+                        if (!shutDown){
+                            e.printStackTrace();
+                        }
                     }
                 });
     }
 
+    //Sends the command as 'SUB_ID verb@SEQ TOPICS' without waiting, the broker acknowledges it with 'OK SEQ'
     private static void sendCommand(String command) {
-        if (!addPendingCommand(command)) {
-            return;
-        }
+        var split = command.split(" ", 3);
         try {
-            var socketOutStream = new PrintWriter(brokerSocket.getOutputStream(), true);
-            socketOutStream.println(command);
+            writeCommand(String.format("%s %s@%d %s", split[0], split[1], addPendingCommand(command), split[2]));
         } catch (IOException e) {
             if (!shutDown){
                 e.printStackTrace();
@@ -140,36 +355,36 @@ public class Subscriber {
         }
     }
 
-    private static void sendCommandAndWaitForOK(String command) {
-        try {
-            var socketOutStream = new PrintWriter(brokerSocket.getOutputStream(), true);
-            var socketInStream = new BufferedReader(new InputStreamReader(brokerSocket.getInputStream()));
-            socketOutStream.println(command);
-            var response = socketInStream.readLine();
-            while (!"OK".equals(response)){
-                if (response == null){
-                    System.err.println("Couldn't connect to broker");
-                }
-                else {
-                    var split = response.split(" ", 2);
-                    System.out.printf("Received msg for topic %s: %s%n", split[0], split[1]);
-                }
-                response = socketInStream.readLine();
-            }
-            var split = command.split(" ", 3);
-            if ("sub".equals(split[1])){
-                System.out.println(String.format("Subscribed to topic: %s", split[2]));
-            }
-            else {
-                System.out.println(String.format("Unsubscribed from topic: %s", split[2]));
-            }
-        } catch (IOException e) {
-            if (!shutDown){
-                e.printStackTrace();
-            }
+    private static void commandAcknowledged(long sequence){
+        var command = pendingCommands.remove(sequence);
+        if (command == null){
+            System.err.println(String.format("Got unexpected response 'OK %d'", sequence));
+            return;
+        }
+        var split = command.split(" ", 3);
+        if ("sub".equals(split[1])){
+            System.out.println(String.format("Subscribed to topic: %s", split[2]));
+        }
+        else if ("unsub".equals(split[1])){
+            System.out.println(String.format("Unsubscribed from topic: %s", split[2]));
+        }
+        else if ("msub".equals(split[1])){
+            System.out.println(String.format("Subscribed to topics: %s", split[2]));
+        }
+        else {
+            System.out.println(String.format("Unsubscribed from topics: %s", split[2]));
         }
     }
 
+    private static void commandRejected(long sequence){
+        var command = pendingCommands.remove(sequence);
+        if (command == null){
+            System.err.println(String.format("Got unexpected response 'ERR %d'", sequence));
+            return;
+        }
+        System.err.println(String.format("Broker rejected command: %s", command));
+    }
+
     private static boolean commandIsValid(String userInput) {
 
         var split = userInput.split(" ", 3);
@@ -179,17 +394,234 @@ public class Subscriber {
             System.err.println("Invalid command format");
             isValid = false;
         }
-        if (!id.equals(split[0])){
+        if (!ids.contains(split[0])){
             System.err.printf("Invalid id: '%s'%n", split[0]);
             isValid = false;
         }
-        if (!"sub".equals(split[1]) && !"unsub".equals(split[1])){
+        var bulk = "msub".equals(split[1]) || "munsub".equals(split[1]);
+        if (!"sub".equals(split[1]) && !"unsub".equals(split[1]) && !bulk){
             System.err.printf("Invalid command: '%s'%n", split[1]);
             isValid = false;
         }
+        var topics = split.length == 3 ? split[2] : "";
+        if ("sub".equals(split[1]) && topics.contains(" ")){
+            // sub TOPIC from:earliest|latest|OFFSET replays the topic from the broker's store
+            var from = topics.substring(topics.indexOf(' ') + 1);
+            if (!from.matches("from:(earliest|latest|\\d{1,18})")){
+                System.err.printf("Invalid start offset: '%s'%n", from);
+                isValid = false;
+            }
+            topics = topics.substring(0, topics.indexOf(' '));
+        }
+        if (split.length == 3){
+            // msub and munsub take a space separated list of topics
+            for (var topic : bulk ? topics.split(" ") : new String[]{topics}){
+                if (!topicIsValid(topic)){
+                    System.err.printf("Invalid topic: '%s'%n", topic);
+                    isValid = false;
+                }
+            }
+        }
         return isValid;
     }
 
+    //Topics are '/' separated levels, '+' matches one level and '#' as the last level matches everything below
+    private static boolean topicIsValid(String topic){
+        var levels = topic.split("/", -1);
+        for (int i = 0; i < levels.length; i++){
+            if (levels[i].contains("+") && !"+".equals(levels[i])){
+                return false;
+            }
+            if ("#".equals(levels[i]) && i != levels.length - 1){
+                return false;
+            }
+        }
+        return true;
+    }
+
+    //Client end of the broker's shared memory transport (-shm on both sides), mirrors the broker's
+    //SharedMemoryTransport file layout. This client is the only writer of the ring towards the broker
+    //and the only reader of the ring back, so waiting for data or room spins and parks but never calls the kernel.
+    //Writes are serialized by the buffered stream on top, reads come from a single thread.
+    private static final class SharedMemoryChannel {
+
+        private static final int MAGIC = 'P' << 24 | 'S' << 16 | 'R' << 8 | '1';
+        private static final int RING_BYTES = 1 << 20;
+        private static final int CAPACITY_OFFSET = 4;
+        private static final int PID_OFFSET = 8;
+        private static final int TO_BROKER_WRITE = 64;
+        private static final int TO_BROKER_READ = 128;
+        private static final int TO_CLIENT_WRITE = 192;
+        private static final int TO_CLIENT_READ = 256;
+        private static final int CLIENT_CLOSED = 320;
+        private static final int BROKER_CLOSED = 384;
+        private static final int BROKER_ATTACHED = 448;
+        private static final int BROKER_PID = 456;
+        private static final int DATA_OFFSET = 512;
+        private static final VarHandle LONGS = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.nativeOrder());
+        private static final int IDLE_SPINS = 100;
+        private static final long MAX_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+        private static final long ATTACH_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(2);
+        private static final long BROKER_CHECK_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+        private final MappedByteBuffer file;
+        private final ByteBuffer toBroker;
+        private final ByteBuffer toClient;
+        private long written = 0;
+        private long brokerRead = 0;
+        private long read = 0;
+        private long brokerWritten = 0;
+        private ProcessHandle broker;
+        // shared by the reading and writing threads, an occasional extra check does no harm
+        private volatile long nextBrokerCheck = 0;
+
+        //Creates the file under a temporary name and renames it once set up, then waits for the broker to map it
+        SharedMemoryChannel(Path directory, boolean publisher) throws IOException {
+            var temporary = Files.createTempFile(directory, publisher ? "pub-" : "sub-", ".tmp");
+            try (var channel = FileChannel.open(temporary, StandardOpenOption.READ, StandardOpenOption.WRITE)){
+                file = channel.map(FileChannel.MapMode.READ_WRITE, 0, DATA_OFFSET + 2L * RING_BYTES);
+            }
+            file.order(ByteOrder.nativeOrder());
+            file.putInt(0, MAGIC).putInt(CAPACITY_OFFSET, RING_BYTES).putLong(PID_OFFSET, ProcessHandle.current().pid());
+            toBroker = file.duplicate().position(DATA_OFFSET).limit(DATA_OFFSET + RING_BYTES).slice();
+            toClient = file.duplicate().position(DATA_OFFSET + RING_BYTES).limit(DATA_OFFSET + 2 * RING_BYTES).slice();
+            var name = temporary.getFileName().toString();
+            var attached = temporary.resolveSibling(name.substring(0, name.length() - ".tmp".length())
+                    + (publisher ? ".pub" : ".sub"));
+            Files.move(temporary, attached, StandardCopyOption.ATOMIC_MOVE);
+            var deadline = System.nanoTime() + ATTACH_TIMEOUT_NANOS;
+            for (int idle = 1; (long) LONGS.getAcquire(file, BROKER_ATTACHED) == 0; idle++){
+                if (System.nanoTime() - deadline > 0){
+                    Files.deleteIfExists(attached);
+                    throw new IOException(String.format("No broker is serving shared memory clients in %s", directory));
+                }
+                backOff(idle);
+            }
+            broker = ProcessHandle.of(file.getLong(BROKER_PID))
+                    .orElseThrow(() -> new IOException("The broker exited while attaching"));
+        }
+
+        OutputStream output(){
+            return new OutputStream() {
+                @Override
+                public void write(int b) throws IOException {
+                    write(new byte[]{(byte) b}, 0, 1);
+                }
+
+                @Override
+                public void write(byte[] bytes, int offset, int length) throws IOException {
+                    var idle = 0;
+                    while (length > 0){
+                        var count = SharedMemoryChannel.this.write(bytes, offset, length);
+                        offset += count;
+                        length -= count;
+                        if (count == 0 && brokerGone()){
+                            throw new IOException("Broker closed the connection");
+                        }
+                        idle = count == 0 ? idle + 1 : 0;
+                        backOff(idle);
+                    }
+                }
+            };
+        }
+
+        InputStream input(){
+            return new InputStream() {
+                @Override
+                public int read() throws IOException {
+                    var single = new byte[1];
+                    return read(single, 0, 1) < 0 ? -1 : single[0] & 0xFF;
+                }
+
+                @Override
+                public int read(byte[] bytes, int offset, int length) throws IOException {
+                    for (int idle = 1; length > 0; idle++){
+                        var count = SharedMemoryChannel.this.read(bytes, offset, length);
+                        if (count > 0){
+                            return count;
+                        }
+                        // whatever the broker wrote before closing is read first
+                        if (brokerGone()){
+                            count = SharedMemoryChannel.this.read(bytes, offset, length);
+                            return count > 0 ? count : -1;
+                        }
+                        backOff(idle);
+                    }
+                    return 0;
+                }
+            };
+        }
+
+        private int write(byte[] bytes, int offset, int length){
+            if (RING_BYTES - (written - brokerRead) < length){
+                brokerRead = (long) LONGS.getAcquire(file, TO_BROKER_READ);
+            }
+            var count = (int) Math.min(RING_BYTES - (written - brokerRead), length);
+            for (int copied = 0; copied < count; ){
+                var index = (int) (written + copied) & (RING_BYTES - 1);
+                var chunk = Math.min(count - copied, RING_BYTES - index);
+                toBroker.clear().position(index);
+                toBroker.put(bytes, offset + copied, chunk);
+                copied += chunk;
+            }
+            if (count > 0){
+                written += count;
+                LONGS.setRelease(file, TO_BROKER_WRITE, written);
+            }
+            return count;
+        }
+
+        private int read(byte[] bytes, int offset, int length){
+            if (brokerWritten == read){
+                brokerWritten = (long) LONGS.getAcquire(file, TO_CLIENT_WRITE);
+            }
+            var count = (int) Math.min(brokerWritten - read, length);
+            for (int copied = 0; copied < count; ){
+                var index = (int) (read + copied) & (RING_BYTES - 1);
+                var chunk = Math.min(count - copied, RING_BYTES - index);
+                toClient.clear().position(index);
+                toClient.get(bytes, offset + copied, chunk);
+                copied += chunk;
+            }
+            if (count > 0){
+                read += count;
+                LONGS.setRelease(file, TO_CLIENT_READ, read);
+            }
+            return count;
+        }
+
+        //The broker let go of the file, or its process is gone without doing so.
+        //The process is checked while waiting on the broker, at most every BROKER_CHECK_NANOS.
+        private boolean brokerGone(){
+            if ((long) LONGS.getAcquire(file, BROKER_CLOSED) != 0){
+                return true;
+            }
+            var now = System.nanoTime();
+            if (now - nextBrokerCheck < 0){
+                return false;
+            }
+            nextBrokerCheck = now + BROKER_CHECK_NANOS;
+            return !broker.isAlive();
+        }
+
+        //The broker handles everything written so far before it lets go of the file
+        void close(){
+            LONGS.setRelease(file, CLIENT_CLOSED, 1L);
+        }
+
+        //Spins first, then parks for twice as long on every further idle round up to MAX_PARK_NANOS
+        private static void backOff(int idle){
+            if (idle == 0){
+                return;
+            }
+            if (idle <= IDLE_SPINS){
+                Thread.onSpinWait();
+                return;
+            }
+            LockSupport.parkNanos(Math.min(1L << Math.min(idle - IDLE_SPINS, 20), MAX_PARK_NANOS));
+        }
+    }
+
     private static String[] parseCommand(String command){
         var split = command.split(" ", 2);
         return new String[]{split[0], String.format("%s %s", id, split[1])};
@@ -215,7 +647,8 @@ public class Subscriber {
     private static void validateArgs(String[] args){
         var invalidArgsMsg = "Invalid arguments";
         var unknownArgTemplate = "Unknown argument: '%s'";
-        var validArgFormat = "Subscriber runs as follows: <Subscriber -i ID -r sub_port -h broker_IP -p port [-f command_file]>";
+        var validArgFormat = "Subscriber runs as follows: <Subscriber -i ID[,ID...] [-r sub_port] -h broker_IP -p port [-f command_file] "
+                + "[-proto text|binary] [-shm directory]>";
         var invalidPort = "Value '%s' is not valid for %s port";
 
         var idArg = "-i";
@@ -223,14 +656,18 @@ public class Subscriber {
         var brokerIpArg = "-h";
         var brokerPortArg = "-p";
         var commandFileArg = "-f";
+        var protocolArg = "-proto";
+        var sharedMemoryArg = "-shm";
 
         String id = null;
-        String port = null;
+        String port = "0";
         String brokerIp = null;
         String brokerPort = null;
         String commandFile = null;
+        String protocol = "text";
+        String sharedMemory = null;
 
-        if (args.length != 8 && args.length != 10){
+        if (args.length < 4 || args.length % 2 != 0){
             System.err.println(invalidArgsMsg);
             System.err.println(validArgFormat);
             System.exit(-1);
@@ -252,6 +689,12 @@ public class Subscriber {
             else if (commandFileArg.equals(args[i])){
                 commandFile = args[i + 1];
             }
+            else if (protocolArg.equals(args[i])){
+                protocol = args[i + 1];
+            }
+            else if (sharedMemoryArg.equals(args[i])){
+                sharedMemory = args[i + 1];
+            }
             else {
                 System.err.println(invalidArgsMsg);
                 System.err.println(String.format(unknownArgTemplate, args[i]));
@@ -260,7 +703,8 @@ public class Subscriber {
             }
         }
 
-        if (id == null || port == null || brokerIp == null || brokerPort == null ){
+        // a shared memory broker is found through its directory instead of its address
+        if (id == null || port == null || (sharedMemory == null && (brokerIp == null || brokerPort == null))){
             System.err.println(invalidArgsMsg);
             System.err.println(validArgFormat);
             System.exit(-1);
@@ -276,7 +720,7 @@ public class Subscriber {
         }
 
         try {
-            Subscriber.brokerPort = Integer.parseInt(brokerPort);
+            Subscriber.brokerPort = brokerPort == null ? 0 : Integer.parseInt(brokerPort);
         }
         catch(NumberFormatException e){
             System.err.println(invalidArgsMsg);
@@ -284,25 +728,24 @@ public class Subscriber {
             System.exit(-1);
         }
 
-        Subscriber.id = id;
+        if (!"text".equals(protocol) && !"binary".equals(protocol)){
+            System.err.println(invalidArgsMsg);
+            System.err.println(String.format("Unknown protocol: '%s'", protocol));
+            System.exit(-1);
+        }
+
+        Subscriber.ids = List.of(id.split(","));
+        Subscriber.id = Subscriber.ids.get(0);
+        Subscriber.binaryProtocol = "binary".equals(protocol) || sharedMemory != null;
+        Subscriber.sharedMemoryDirectory = sharedMemory == null ? null : Path.of(sharedMemory);
         Subscriber.brokerIp = brokerIp;
         Subscriber.commandFile = commandFile;
     }
 
-    private static synchronized boolean addPendingCommand(String command){
-        if (pendingCommand == null){
-            pendingCommand = command;
-            return true;
-        }
-        else {
-            System.err.println(String.format("There is already a pending command: '%s'", pendingCommand));
-        }
-        return false;
-    }
-
-    private static synchronized String removePendingCommand(){
-        var command = pendingCommand;
-        pendingCommand = null;
-        return command;
+    //Returns the sequence number the command's acknowledgement will carry
+    private static synchronized long addPendingCommand(String command){
+        var sequence = nextSequence++;
+        pendingCommands.put(sequence, command);
+        return sequence;
     }
 }
@@ -0,0 +1,283 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
+
+//Topic -> subscribers index. Every topic maps to an immutable snapshot array that is
+//replaced atomically on sub/unsub, so publishers resolve their fan-out without locking.
+//A reverse subscriber -> topics index lets a disconnect touch only the subscriber's own topics.
+//Subscribers and subscribed topics are interned to dense int ids: a subscriber's topics are an IntSet of
+//topic ids, and all of a subscriber's live subscriptions share one Subscription holding its connection,
+//so a subscription costs an array slot in its topic and one in its subscriber's set.
+//Wildcard patterns live in a TopicTrie; the fan-out resolved for a concrete topic is cached and
+//stays valid while neither the patterns nor that topic's exact subscribers change.
+//An optional listener hears when a topic or pattern gains its first subscriber or loses its last one.
+final class SubscriptionIndex {
+
+    //Called in order for each topic or pattern, under the lock that serializes its changes
+    interface InterestListener {
+        void interestChanged(String topic, boolean interested);
+    }
+
+    static final class Subscription {
+        final int clientId;
+        final String subscriberId;
+        final Connection connection;
+
+        Subscription(int clientId, String subscriberId, Connection connection) {
+            this.clientId = clientId;
+            this.subscriberId = subscriberId;
+            this.connection = connection;
+        }
+    }
+
+    //A subscriber's side of the index, its changes are serialized on it
+    private static final class Client {
+        final int id;
+        final String name;
+        final IntSet topics = new IntSet();
+        Subscription live = null;
+        boolean removed = false;
+
+        Client(int id, String name) {
+            this.id = id;
+            this.name = name;
+        }
+
+        //The first connection subscribed with is shared, others (catch-up replays) get their own subscription
+        Subscription subscription(Connection connection){
+            if (live == null){
+                live = new Subscription(id, name, connection);
+            }
+            return live.connection == connection ? live : new Subscription(id, name, connection);
+        }
+    }
+
+    private static final class ResolvedTopic {
+        final long patternsVersion;
+        final Subscription[] exact;
+        final Subscription[] subscriptions;
+
+        ResolvedTopic(long patternsVersion, Subscription[] exact, Subscription[] subscriptions) {
+            this.patternsVersion = patternsVersion;
+            this.exact = exact;
+            this.subscriptions = subscriptions;
+        }
+    }
+
+    private static final Subscription[] NO_SUBSCRIPTIONS = new Subscription[0];
+    private static final int MAX_RESOLVED_TOPICS = 64 * 1024;
+
+    private final ConcurrentHashMap<String, Subscription[]> topicSubscribers = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Client> clients = new ConcurrentHashMap<>();
+    private final Interner clientIds = new Interner();
+    private final Interner topicIds = new Interner();
+    private final TopicTrie patterns = new TopicTrie();
+    private final AtomicLong patternsVersion = new AtomicLong();
+    private final ConcurrentHashMap<String, ResolvedTopic> resolvedTopics = new ConcurrentHashMap<>();
+    // subscribers per pattern, guarded by the trie's monitor
+    private final Map<String, Integer> patternSubscribers = new HashMap<>();
+    private volatile InterestListener interestListener = null;
+
+    void setInterestListener(InterestListener interestListener){
+        this.interestListener = interestListener;
+    }
+
+    //Topics and patterns with at least one subscriber
+    List<String> interest(){
+        var interest = new ArrayList<String>(topicSubscribers.keySet());
+        synchronized (patterns){
+            interest.addAll(patternSubscribers.keySet());
+        }
+        return interest;
+    }
+
+    private void notifyInterest(String topic, boolean interested){
+        if (!interested){
+            BrokerMetrics.forgetTopic(topic);
+        }
+        var listener = interestListener;
+        if (listener != null){
+            listener.interestChanged(topic, interested);
+        }
+    }
+
+    Subscription[] subscribers(String topic){
+        var exact = topicSubscribers.get(topic);
+        if (exact == null){
+            exact = NO_SUBSCRIPTIONS;
+        }
+        if (patterns.isEmpty()){
+            return exact;
+        }
+        // exact arrays are replaced on every change, so identity tells whether the cached entry is stale
+        var version = patternsVersion.get();
+        var resolved = resolvedTopics.get(topic);
+        if (resolved != null && resolved.patternsVersion == version && resolved.exact == exact){
+            return resolved.subscriptions;
+        }
+        var matches = new ArrayList<Subscription>(Arrays.asList(exact));
+        patterns.match(topic, matches);
+        var subscriptions = distinct(matches);
+        if (resolvedTopics.size() >= MAX_RESOLVED_TOPICS){
+            resolvedTopics.clear();
+        }
+        resolvedTopics.put(topic, new ResolvedTopic(version, exact, subscriptions));
+        return subscriptions;
+    }
+
+    //A subscriber matched by several patterns still gets the message once
+    private static Subscription[] distinct(List<Subscription> matches){
+        if (matches.size() <= 1){
+            return matches.toArray(NO_SUBSCRIPTIONS);
+        }
+        var seen = new BitSet();
+        var distinct = new ArrayList<Subscription>(matches.size());
+        for (var subscription : matches){
+            if (!seen.get(subscription.clientId)){
+                seen.set(subscription.clientId);
+                distinct.add(subscription);
+            }
+        }
+        return distinct.toArray(NO_SUBSCRIPTIONS);
+    }
+
+    //The registered check runs under the subscriber's lock, the one removeSubscriber takes, so a subscriber
+    //that disconnects while subscribing is either removed after this or never subscribed.
+    //Returns false when the check fails.
+    boolean subscribe(String subId, Connection connection, String topic, BooleanSupplier registered){
+        while (true){
+            var client = clients.computeIfAbsent(subId, name -> new Client(clientIds.acquire(name), name));
+            synchronized (client){
+                // a concurrent removal unmapped it first, the next round creates a fresh one
+                if (client.removed){
+                    continue;
+                }
+                if (!registered.getAsBoolean()){
+                    // drop the entry this call may have created, nothing else would remove it
+                    if (client.topics.size() == 0){
+                        client.removed = true;
+                        clients.remove(subId, client);
+                        clientIds.release(client.id);
+                    }
+                    return false;
+                }
+                var topicId = topicIds.acquire(topic);
+                if (!client.topics.add(topicId)){
+                    topicIds.release(topicId);
+                }
+                addToTopic(client.subscription(connection), topic);
+                return true;
+            }
+        }
+    }
+
+    private void addToTopic(Subscription subscription, String topic){
+        if (TopicTrie.isPattern(topic)){
+            synchronized (patterns){
+                if (patterns.add(topic, subscription)){
+                    patternsVersion.incrementAndGet();
+                    if (patternSubscribers.merge(topic, 1, Integer::sum) == 1){
+                        notifyInterest(topic, true);
+                    }
+                }
+            }
+            return;
+        }
+        topicSubscribers.compute(topic, (key, current) -> {
+            if (current == null){
+                notifyInterest(topic, true);
+                return new Subscription[]{subscription};
+            }
+            if (indexOf(current, subscription.clientId) >= 0){
+                return current;
+            }
+            var updated = Arrays.copyOf(current, current.length + 1);
+            updated[current.length] = subscription;
+            return updated;
+        });
+    }
+
+    void unsubscribe(String subId, String topic){
+        var client = clients.get(subId);
+        if (client == null){
+            return;
+        }
+        synchronized (client){
+            if (client.removed){
+                return;
+            }
+            var topicId = topicIds.find(topic);
+            if (topicId != IntSet.EMPTY && client.topics.remove(topicId)){
+                topicIds.release(topicId);
+            }
+            removeFromTopic(client.id, topic);
+        }
+    }
+
+    void removeSubscriber(String subId){
+        var client = clients.remove(subId);
+        if (client == null){
+            return;
+        }
+        synchronized (client){
+            client.removed = true;
+            for (var topicId : client.topics.toArray()){
+                removeFromTopic(client.id, topicIds.name(topicId));
+                topicIds.release(topicId);
+            }
+        }
+        clientIds.release(client.id);
+    }
+
+    private void removeFromTopic(int clientId, String topic){
+        if (!TopicTrie.isPattern(topic)){
+            topicSubscribers.computeIfPresent(topic, (key, current) -> {
+                var remaining = without(current, clientId);
+                if (remaining == null){
+                    notifyInterest(topic, false);
+                }
+                return remaining;
+            });
+            return;
+        }
+        synchronized (patterns){
+            if (patterns.remove(topic, clientId)){
+                patternsVersion.incrementAndGet();
+                if (patternSubscribers.merge(topic, -1, Integer::sum) == 0){
+                    patternSubscribers.remove(topic);
+                    notifyInterest(topic, false);
+                }
+            }
+        }
+    }
+
+    //Returning null from the remapping function prunes topics left without subscribers
+    private static Subscription[] without(Subscription[] current, int clientId){
+        var index = indexOf(current, clientId);
+        if (index < 0){
+            return current;
+        }
+        if (current.length == 1){
+            return null;
+        }
+        var updated = new Subscription[current.length - 1];
+        System.arraycopy(current, 0, updated, 0, index);
+        System.arraycopy(current, index + 1, updated, index, current.length - index - 1);
+        return updated;
+    }
+
+    private static int indexOf(Subscription[] subscriptions, int clientId){
+        for (int i = 0; i < subscriptions.length; i++){
+            if (subscriptions[i].clientId == clientId){
+                return i;
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,233 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.zip.CRC32C;
+
+//Append-only log of one topic, split into memory-mapped segment files named after their first offset.
+//A record is size(4) crc32c(4) offset(8) timestamp(8) followed by the payload, where size covers the whole record.
+//Segment files are created at their full size, so a zero size marks the end of the written records.
+//A topic's first segment is small and every roll doubles the size up to the configured one, so the many topics
+//that only ever hold a few messages cost a few small mappings instead of one full segment each.
+final class TopicLog {
+
+    static final int RECORD_HEADER_SIZE = 24;
+    static final int FIRST_SEGMENT_BYTES = 64 * 1024;
+    private static final String SEGMENT_SUFFIX = ".log";
+
+    static final class Segment {
+        final Path path;
+        final long baseOffset;
+        final MappedByteBuffer buffer;
+        private final ByteBuffer writer;
+        private volatile int size;
+        private long lastTimestamp;
+
+        private Segment(Path path, long baseOffset, MappedByteBuffer buffer) {
+            this.path = path;
+            this.baseOffset = baseOffset;
+            this.buffer = buffer;
+            this.writer = buffer.duplicate();
+        }
+
+        //Bytes of complete records, records are only visible to readers up to here
+        int size(){
+            return size;
+        }
+    }
+
+    //Receives the records of a read, returning false stops the read
+    interface RecordHandler {
+        boolean handle(long offset, byte[] payload);
+    }
+
+    private final Path directory;
+    private final int segmentBytes;
+    private final ArrayDeque<Segment> segments = new ArrayDeque<>();
+    private final List<Segment> unsynced = new ArrayList<>();
+    private final CRC32C checksum = new CRC32C();
+    private long nextOffset = 0;
+    private long totalBytes = 0;
+
+    private TopicLog(Path directory, int segmentBytes) {
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+    }
+
+    //Opens the topic's segments, dropping whatever follows the last intact record of each one
+    static TopicLog open(Path directory, int segmentBytes) throws IOException {
+        Files.createDirectories(directory);
+        var log = new TopicLog(directory, segmentBytes);
+        List<Path> paths;
+        try (var files = Files.list(directory)){
+            paths = files.filter(path -> path.getFileName().toString().endsWith(SEGMENT_SUFFIX))
+                    .sorted()
+                    .collect(Collectors.toList());
+        }
+        for (var path : paths){
+            var name = path.getFileName().toString();
+            var segment = new Segment(path, Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length())),
+                    map(path, 0));
+            log.nextOffset = segment.baseOffset;
+            log.recover(segment);
+            log.segments.addLast(segment);
+            log.totalBytes += segment.size;
+        }
+        return log;
+    }
+
+    private void recover(Segment segment){
+        var records = segment.buffer.duplicate();
+        while (records.remaining() >= RECORD_HEADER_SIZE){
+            var start = records.position();
+            var recordSize = records.getInt(start);
+            if (recordSize < RECORD_HEADER_SIZE || recordSize > records.remaining()
+                    || records.getLong(start + 8) != nextOffset){
+                break;
+            }
+            var payload = records.duplicate().position(start + RECORD_HEADER_SIZE).limit(start + recordSize);
+            checksum.reset();
+            checksum.update(payload);
+            if ((int) checksum.getValue() != records.getInt(start + 4)){
+                break;
+            }
+            segment.lastTimestamp = records.getLong(start + 16);
+            nextOffset++;
+            records.position(start + recordSize);
+        }
+        segment.size = records.position();
+        segment.writer.position(segment.size);
+    }
+
+    private static MappedByteBuffer map(Path path, int capacity) throws IOException {
+        try (var channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE)){
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(channel.size(), capacity));
+        }
+    }
+
+    //Returns the offset given to the payload
+    synchronized long append(byte[] payload, long timestamp) throws IOException {
+        var recordSize = RECORD_HEADER_SIZE + payload.length;
+        var active = segments.peekLast();
+        if (active == null || active.writer.remaining() < recordSize){
+            active = roll(recordSize);
+        }
+        checksum.reset();
+        checksum.update(payload);
+        var offset = nextOffset++;
+        active.writer.putInt(recordSize)
+                .putInt((int) checksum.getValue())
+                .putLong(offset)
+                .putLong(timestamp)
+                .put(payload);
+        active.lastTimestamp = timestamp;
+        active.size = active.writer.position();
+        totalBytes += recordSize;
+        return offset;
+    }
+
+    //Seals the active segment and maps a new one twice its size up to segmentBytes,
+    //sized up for records larger than that
+    private Segment roll(int recordSize) throws IOException {
+        var sealed = segments.peekLast();
+        var capacity = Math.min(FIRST_SEGMENT_BYTES, segmentBytes);
+        if (sealed != null){
+            unsynced.add(sealed);
+            capacity = (int) Math.min(segmentBytes, Math.max(capacity, 2L * sealed.buffer.capacity()));
+        }
+        var path = directory.resolve(String.format("%020d%s", nextOffset, SEGMENT_SUFFIX));
+        var segment = new Segment(path, nextOffset, map(path, Math.max(capacity, recordSize)));
+        segments.addLast(segment);
+        return segment;
+    }
+
+    synchronized long nextOffset(){
+        return nextOffset;
+    }
+
+    //Hands the records from `offset` up to the current end of the log to the handler, scanning the mapped
+    //segments sequentially. Offsets removed by retention are skipped. Returns the offset following the
+    //last record handed over, or -1 if the handler stopped the read.
+    long read(long offset, RecordHandler handler){
+        List<Segment> snapshot;
+        long end;
+        synchronized (this){
+            snapshot = new ArrayList<>(segments);
+            end = nextOffset;
+        }
+        for (int i = 0; i < snapshot.size() && offset < end; i++){
+            if (i + 1 < snapshot.size() && snapshot.get(i + 1).baseOffset <= offset){
+                continue;
+            }
+            var segment = snapshot.get(i);
+            var records = segment.buffer.duplicate();
+            var limit = segment.size();
+            var position = 0;
+            while (position < limit){
+                var recordSize = records.getInt(position);
+                var recordOffset = records.getLong(position + 8);
+                if (recordOffset >= end){
+                    return end;
+                }
+                if (recordOffset >= offset){
+                    var payload = new byte[recordSize - RECORD_HEADER_SIZE];
+                    records.position(position + RECORD_HEADER_SIZE);
+                    records.get(payload);
+                    if (!handler.handle(recordOffset, payload)){
+                        return -1;
+                    }
+                    offset = recordOffset + 1;
+                }
+                position += recordSize;
+            }
+        }
+        return Math.max(offset, end);
+    }
+
+    //Forces the records appended so far to disk, including those of segments sealed since the last call
+    void force(){
+        List<Segment> sealed;
+        Segment active;
+        synchronized (this){
+            sealed = new ArrayList<>(unsynced);
+            unsynced.clear();
+            active = segments.peekLast();
+        }
+        sealed.forEach(segment -> segment.buffer.force());
+        if (active != null){
+            active.buffer.force();
+        }
+    }
+
+    //Deletes the oldest sealed segments while the log is over its byte budget or they are older than the age limit.
+    //A limit of 0 disables that check, the active segment is always kept.
+    void enforceRetention(long retentionBytes, long retentionMillis, long now) throws IOException {
+        var expired = new ArrayList<Segment>();
+        synchronized (this){
+            while (segments.size() > 1){
+                var oldest = segments.peekFirst();
+                var overBudget = retentionBytes > 0 && totalBytes > retentionBytes;
+                var tooOld = retentionMillis > 0 && oldest.lastTimestamp < now - retentionMillis;
+                if (!overBudget && !tooOld){
+                    break;
+                }
+                segments.removeFirst();
+                unsynced.remove(oldest);
+                totalBytes -= oldest.size;
+                expired.add(oldest);
+            }
+        }
+        // the mappings themselves are released once the buffers are garbage collected
+        for (var segment : expired){
+            Files.deleteIfExists(segment.path);
+        }
+    }
+}
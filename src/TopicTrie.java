@@ -0,0 +1,137 @@
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+//Trie of wildcard subscriptions keyed by topic level ('/' separated).
+//'+' matches exactly one level, '#' as the last level matches the parent level and everything below it.
+//Matching walks the published topic's levels, so its cost follows the topic depth and not the number of patterns.
+//Writers are serialized on the trie, readers never lock.
+final class TopicTrie {
+
+    static final String SINGLE_LEVEL = "+";
+    static final String MULTI_LEVEL = "#";
+
+    private static final SubscriptionIndex.Subscription[] NONE = new SubscriptionIndex.Subscription[0];
+
+    private static final class Node {
+        private final ConcurrentHashMap<String, Node> children = new ConcurrentHashMap<>();
+        private volatile SubscriptionIndex.Subscription[] subscriptions = NONE;
+
+        boolean isEmpty(){
+            return subscriptions.length == 0 && children.isEmpty();
+        }
+    }
+
+    private final Node root = new Node();
+    private volatile int patternCount = 0;
+
+    static boolean isPattern(String topic){
+        for (var level : topic.split("/", -1)){
+            if (SINGLE_LEVEL.equals(level) || MULTI_LEVEL.equals(level)){
+                return true;
+            }
+        }
+        return false;
+    }
+
+    //'+' and '#' must be whole levels and '#' may only be the last one
+    static boolean isValidPattern(String topic){
+        var levels = topic.split("/", -1);
+        for (int i = 0; i < levels.length; i++){
+            if (levels[i].contains(SINGLE_LEVEL) && !SINGLE_LEVEL.equals(levels[i])){
+                return false;
+            }
+            if (MULTI_LEVEL.equals(levels[i]) && i != levels.length - 1){
+                return false;
+            }
+        }
+        return true;
+    }
+
+    //Matches a single pattern against a topic without building a trie
+    static boolean matches(String pattern, String topic){
+        var patternLevels = pattern.split("/", -1);
+        var levels = topic.split("/", -1);
+        for (int i = 0; i < patternLevels.length; i++){
+            if (MULTI_LEVEL.equals(patternLevels[i])){
+                return true;
+            }
+            if (i >= levels.length || (!SINGLE_LEVEL.equals(patternLevels[i]) && !patternLevels[i].equals(levels[i]))){
+                return false;
+            }
+        }
+        return patternLevels.length == levels.length;
+    }
+
+    boolean isEmpty(){
+        return patternCount == 0;
+    }
+
+    synchronized boolean add(String pattern, SubscriptionIndex.Subscription subscription){
+        var node = root;
+        for (var level : pattern.split("/", -1)){
+            node = node.children.computeIfAbsent(level, key -> new Node());
+        }
+        var current = node.subscriptions;
+        for (var existing : current){
+            if (existing.clientId == subscription.clientId){
+                return false;
+            }
+        }
+        var updated = Arrays.copyOf(current, current.length + 1);
+        updated[current.length] = subscription;
+        node.subscriptions = updated;
+        patternCount++;
+        return true;
+    }
+
+    synchronized boolean remove(String pattern, int clientId){
+        var levels = pattern.split("/", -1);
+        var path = new Node[levels.length + 1];
+        path[0] = root;
+        for (int i = 0; i < levels.length; i++){
+            path[i + 1] = path[i].children.get(levels[i]);
+            if (path[i + 1] == null){
+                return false;
+            }
+        }
+        var node = path[levels.length];
+        var current = node.subscriptions;
+        var remaining = Arrays.stream(current)
+                .filter(subscription -> subscription.clientId != clientId)
+                .toArray(SubscriptionIndex.Subscription[]::new);
+        if (remaining.length == current.length){
+            return false;
+        }
+        node.subscriptions = remaining.length == 0 ? NONE : remaining;
+        patternCount--;
+        // prune the branch bottom-up so the trie does not keep dead levels around
+        for (int i = levels.length; i > 0 && path[i].isEmpty(); i--){
+            path[i - 1].children.remove(levels[i - 1], path[i]);
+        }
+        return true;
+    }
+
+    void match(String topic, List<SubscriptionIndex.Subscription> matches){
+        collect(root, topic.split("/", -1), 0, matches);
+    }
+
+    private static void collect(Node node, String[] levels, int depth, List<SubscriptionIndex.Subscription> matches){
+        var multiLevel = node.children.get(MULTI_LEVEL);
+        if (multiLevel != null){
+            matches.addAll(Arrays.asList(multiLevel.subscriptions));
+        }
+        if (depth == levels.length){
+            matches.addAll(Arrays.asList(node.subscriptions));
+            return;
+        }
+        var exact = node.children.get(levels[depth]);
+        if (exact != null){
+            collect(exact, levels, depth + 1, matches);
+        }
+        var singleLevel = node.children.get(SINGLE_LEVEL);
+        if (singleLevel != null){
+            collect(singleLevel, levels, depth + 1, matches);
+        }
+    }
+}